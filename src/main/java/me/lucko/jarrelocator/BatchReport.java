@@ -0,0 +1,83 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of relocating a batch of jars.
+ *
+ * @see RelocationEngine#relocateAll(Map, int)
+ */
+public final class BatchReport {
+
+    /** The results of the jars which were relocated, in the order they were given */
+    private final List<RelocationResult> results;
+    /** The exceptions thrown relocating the other jars, keyed by input jar, in the order they were given */
+    private final Map<File, Exception> failures;
+    private final Duration duration;
+
+    BatchReport(List<RelocationResult> results, Map<File, Exception> failures, Duration duration) {
+        this.results = Collections.unmodifiableList(results);
+        this.failures = Collections.unmodifiableMap(failures);
+        this.duration = duration;
+    }
+
+    /**
+     * Gets the results of the jars which were relocated successfully, in the
+     * order the jars were given.
+     *
+     * @return the results
+     */
+    public List<RelocationResult> getResults() {
+        return this.results;
+    }
+
+    /**
+     * Gets the exceptions thrown relocating the jars which failed, keyed by
+     * input jar, in the order the jars were given.
+     *
+     * <p>Failed jars leave no output behind.</p>
+     *
+     * @return the failures
+     */
+    public Map<File, Exception> getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * Gets if every jar in the batch was relocated successfully.
+     *
+     * @return true if no jar failed
+     */
+    public boolean isSuccessful() {
+        return this.failures.isEmpty();
+    }
+
+    /**
+     * Gets the time taken to relocate the whole batch.
+     *
+     * @return the time taken
+     */
+    public Duration getDuration() {
+        return this.duration;
+    }
+}
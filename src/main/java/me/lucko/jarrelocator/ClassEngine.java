@@ -0,0 +1,39 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+/**
+ * The engine used to relocate the names within class files.
+ */
+public enum ClassEngine {
+
+    /**
+     * Reads each class with ASM, remaps it through a {@link org.objectweb.asm.commons.ClassRemapper}
+     * and writes it back out.
+     */
+    ASM,
+
+    /**
+     * Rewrites only the names held in the constant pool (and the few attributes
+     * which refer to names directly), copying the rest of the class file as-is.
+     *
+     * <p>Classes which can't be handled this way (e.g. those using constant
+     * pool entries unknown to this version) fall back to the {@link #ASM} engine.</p>
+     */
+    CONSTANT_POOL
+
+}
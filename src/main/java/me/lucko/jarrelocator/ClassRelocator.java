@@ -0,0 +1,330 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Relocates classes held in memory, without reading or writing a jar.
+ *
+ * <p>The relocation rules are compiled once, when the relocator is created,
+ * and reused by every call. Relocators are immutable, and may be used by
+ * several threads at once; the {@code with...} methods return a new relocator.</p>
+ */
+public final class ClassRelocator {
+
+    /**
+     * Changed whenever the relocated form of a class can change for the same
+     * settings, to invalidate outputs stored by earlier versions
+     */
+    private static final int OUTPUT_VERSION = 1;
+
+    private final Collection<Relocation> relocations;
+    /** The cache used to memoize mapped names, or null */
+    private final NameCache nameCache;
+    /** The engine used to relocate classes */
+    private final ClassEngine classEngine;
+    /** If stack map frames should be expanded when relocating classes with ASM */
+    private final boolean expandFrames;
+
+    private final RelocatingRemapper remapper;
+    private final ConstantPoolScanner scanner;
+    /** The constant pool engine, or null if classes are relocated with ASM */
+    private final ConstantPoolRelocator constantPoolRelocator;
+
+    /**
+     * Creates a new relocator with the given rules.
+     *
+     * @param relocations the relocations
+     */
+    public ClassRelocator(Collection<Relocation> relocations) {
+        this(relocations, null, ClassEngine.ASM, true);
+    }
+
+    /**
+     * Creates a new relocator with the given rules.
+     *
+     * @param relocations the relocations
+     */
+    public ClassRelocator(Map<String, String> relocations) {
+        this(JarRelocator.toRelocations(relocations), null, ClassEngine.ASM, true);
+    }
+
+    ClassRelocator(Collection<Relocation> relocations, NameCache nameCache, ClassEngine classEngine, boolean expandFrames) {
+        if (classEngine == null) {
+            throw new NullPointerException("classEngine");
+        }
+        this.relocations = Collections.unmodifiableList(new ArrayList<>(relocations));
+        this.nameCache = nameCache;
+        this.classEngine = classEngine;
+        this.expandFrames = expandFrames;
+        this.remapper = new RelocatingRemapper(this.relocations, nameCache);
+        this.scanner = new ConstantPoolScanner(this.relocations);
+        this.constantPoolRelocator = classEngine == ClassEngine.CONSTANT_POOL ? new ConstantPoolRelocator(this.remapper) : null;
+    }
+
+    /**
+     * Returns a copy of this relocator which memoizes the results of mapping
+     * names in the given cache.
+     *
+     * <p>The cache may be shared with other relocators, so long as they
+     * use the same relocation rules.</p>
+     *
+     * @param nameCache the cache, or null to disable caching
+     * @return the new relocator
+     */
+    public ClassRelocator withNameCache(NameCache nameCache) {
+        return new ClassRelocator(this.relocations, nameCache, this.classEngine, this.expandFrames);
+    }
+
+    /**
+     * Returns a copy of this relocator which uses the given engine to
+     * relocate classes. Defaults to {@link ClassEngine#ASM}.
+     *
+     * @param classEngine the engine
+     * @return the new relocator
+     */
+    public ClassRelocator withClassEngine(ClassEngine classEngine) {
+        return new ClassRelocator(this.relocations, this.nameCache, classEngine, this.expandFrames);
+    }
+
+    /**
+     * Returns a copy of this relocator which does or doesn't expand stack map
+     * frames when relocating classes with the {@link ClassEngine#ASM ASM engine}.
+     * Defaults to true.
+     *
+     * @param expandFrames if frames should be expanded
+     * @return the new relocator
+     * @see JarRelocator#setExpandFrames(boolean)
+     */
+    public ClassRelocator withExpandFrames(boolean expandFrames) {
+        return new ClassRelocator(this.relocations, this.nameCache, this.classEngine, expandFrames);
+    }
+
+    /**
+     * Relocates a class.
+     *
+     * <p>If nothing in the class is affected by the relocation rules, the
+     * given array is returned as-is.</p>
+     *
+     * @param classFile the class file
+     * @return the relocated class file
+     */
+    public byte[] relocate(byte[] classFile) {
+        return relocate(classFile, null);
+    }
+
+    /**
+     * Relocates a collection of named entries, as they would be relocated
+     * within a jar, on the calling thread.
+     *
+     * @param entries the entries, keyed by their path within a jar
+     * @return the relocated entries, keyed by their relocated path
+     * @see #relocateAll(Map, Executor)
+     */
+    public Map<String, byte[]> relocateAll(Map<String, byte[]> entries) {
+        return relocateAll(entries, null);
+    }
+
+    /**
+     * Relocates a collection of named entries, as they would be relocated
+     * within a jar.
+     *
+     * <p>Entries whose names end in {@code .class} are relocated as classes.
+     * Any other entry is a resource, which is moved to its relocated path
+     * with its contents unchanged.</p>
+     *
+     * <p>The returned map iterates in the same order as the given map. If
+     * several entries are relocated to the same path, the first is kept and
+     * the rest are ignored, as with the resources of a relocated jar and the
+     * classes loaded by a {@link RelocatingClassLoader}.</p>
+     *
+     * @param entries the entries, keyed by their path within a jar
+     * @param executor the executor used to relocate classes in parallel, or
+     *                 null to relocate them on the calling thread
+     * @return the relocated entries, keyed by their relocated path
+     */
+    public Map<String, byte[]> relocateAll(Map<String, byte[]> entries, Executor executor) {
+        Map<String, FutureTask<byte[]>> tasks = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                String name = entry.getKey();
+                String mappedName = mapEntryName(name);
+                if (tasks.containsKey(mappedName)) {
+                    // as in a RelocatingClassLoader, the first entry with a given name wins
+                    continue;
+                }
+
+                byte[] contents = entry.getValue();
+                FutureTask<byte[]> task = new FutureTask<>(() -> name.endsWith(".class") ? relocate(contents, name) : contents);
+                tasks.put(mappedName, task);
+                if (executor == null) {
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            }
+
+            Map<String, byte[]> relocated = new LinkedHashMap<>();
+            for (Map.Entry<String, FutureTask<byte[]>> task : tasks.entrySet()) {
+                relocated.put(task.getKey(), await(task.getValue()));
+            }
+            return relocated;
+        } finally {
+            // if we failed part way, don't bother relocating the rest
+            for (FutureTask<byte[]> task : tasks.values()) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Adds the settings which affect the output of this relocator to a
+     * fingerprint. The name cache only affects performance, so isn't included.
+     *
+     * @param fingerprint the fingerprint
+     */
+    void fingerprint(Fingerprint fingerprint) {
+        fingerprint.add(this.relocations.size());
+        for (Relocation relocation : this.relocations) {
+            relocation.fingerprint(fingerprint);
+        }
+        fingerprintSettings(fingerprint);
+    }
+
+    /**
+     * Adds the settings which affect the output of this relocator, other
+     * than its rules, to a fingerprint, along with the version of its output.
+     *
+     * @param fingerprint the fingerprint
+     */
+    void fingerprintSettings(Fingerprint fingerprint) {
+        fingerprint.add(OUTPUT_VERSION).add(this.classEngine.name()).add(this.expandFrames);
+    }
+
+    /**
+     * Gets the rules applied by this relocator, in order.
+     *
+     * @return the rules
+     */
+    Collection<Relocation> getRelocations() {
+        return this.relocations;
+    }
+
+    /**
+     * Tests whether a class may be affected by relocation. If not,
+     * {@link #relocate(byte[], String)} returns it unchanged.
+     *
+     * @param classFile the class file
+     * @param name the name of the class's jar entry, or null if unknown
+     * @return false if the class is certainly unaffected
+     */
+    boolean mayRelocate(byte[] classFile, String name) {
+        return this.scanner.mayContainMatches(classFile, name);
+    }
+
+    NameCache getNameCache() {
+        return this.nameCache;
+    }
+
+    RelocatingRemapper getRemapper() {
+        return this.remapper;
+    }
+
+    /**
+     * Maps the path of a jar entry.
+     *
+     * @param name the path of the entry
+     * @return the relocated path
+     */
+    String mapEntryName(String name) {
+        if (name.endsWith(".class")) {
+            // Need to take the .class off for remapping evaluation
+            return this.remapper.map(name.substring(0, name.indexOf('.'))) + ".class";
+        }
+        return this.remapper.map(name);
+    }
+
+    /**
+     * Relocates a class.
+     *
+     * @param classFile the class file
+     * @param name the name of the class, or of its jar entry, or null if unknown
+     * @return the relocated class file, or the given array if the class is unaffected by relocation
+     */
+    byte[] relocate(byte[] classFile, String name) {
+        // If none of the names in the class could be relocated, relocating it would only
+        // re-serialize the same class.
+        if (!this.scanner.mayContainMatches(classFile, name)) {
+            return classFile;
+        }
+
+        if (this.constantPoolRelocator != null) {
+            byte[] relocated = this.constantPoolRelocator.relocate(classFile, name != null ? name : new ClassReader(classFile).getClassName());
+            if (relocated != null) {
+                return relocated;
+            }
+        }
+
+        ClassReader classReader = new ClassReader(classFile);
+        if (name == null) {
+            name = classReader.getClassName();
+        }
+        ClassWriter classWriter = new ClassWriter(0);
+        // Frames only need their type names remapped, which works just as well on compressed frames.
+        int readerFlags = this.expandFrames ? ClassReader.EXPAND_FRAMES : 0;
+        RelocatingClassVisitor classVisitor = new RelocatingClassVisitor(classWriter, this.remapper, name);
+
+        try {
+            classReader.accept(classVisitor, readerFlags);
+        } catch (Throwable e) {
+            throw new RuntimeException("Error processing class " + name, e);
+        }
+
+        return classWriter.toByteArray();
+    }
+
+    private static <T> T await(FutureTask<T> task) {
+        // run the task here if the executor hasn't started it yet, rather than wait for it
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted whilst relocating classes", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The contents of a zip entry, compressed ahead of being written by a
+ * {@link ZipWriter}, along with the metadata needed for its headers.
+ *
+ * <p>Compressing entries into their own buffers lets them be compressed in
+ * parallel, leaving the writer only to append them in order.</p>
+ */
+final class CompressedData {
+
+    /** The size below which entries aren't probed for incompressibility */
+    private static final int PROBE_MIN_SIZE = 16 * 1024;
+    /** The size of the sample deflated by the probe */
+    private static final int PROBE_SAMPLE_SIZE = 8 * 1024;
+    /** The compression ratio above which a sample is considered incompressible */
+    private static final double PROBE_MAX_RATIO = 0.97;
+
+    /** The compression method, {@link ZipSource#STORED} or {@link ZipSource#DEFLATED} */
+    private final int method;
+    /** The CRC-32 of the uncompressed contents */
+    private final long crc;
+    /** The size of the uncompressed contents */
+    private final long size;
+    private final byte[] data;
+    private final int length;
+
+    private CompressedData(int method, long crc, long size, byte[] data, int length) {
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Wraps contents which have already been compressed.
+     *
+     * @param method the compression method
+     * @param crc the CRC-32 of the uncompressed contents
+     * @param size the size of the uncompressed contents
+     * @param data the compressed contents
+     * @return the compressed data
+     */
+    static CompressedData of(int method, long crc, long size, byte[] data) {
+        return new CompressedData(method, crc, size, data, data.length);
+    }
+
+    /**
+     * Compresses the given contents. This may be called by several threads at once.
+     *
+     * @param contents the uncompressed contents
+     * @param level the compression level, or {@link CompressionPolicy#STORED}
+     * @param incompressibleProbe if the contents should be stored when they don't shrink
+     * @param deflaters the pool to take a deflater from
+     * @return the compressed data
+     */
+    static CompressedData compress(byte[] contents, int level, boolean incompressibleProbe, DeflaterPool deflaters) {
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+        long crcValue = crc.getValue();
+
+        if (level == CompressionPolicy.STORED || (incompressibleProbe && isIncompressible(contents, deflaters))) {
+            return new CompressedData(ZipSource.STORED, crcValue, contents.length, contents, contents.length);
+        }
+
+        byte[] buf = new byte[contents.length / 2 + 64];
+        int length = 0;
+        Deflater deflater = deflaters.acquire(level);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == buf.length) {
+                    byte[] grown = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, grown, 0, length);
+                    buf = grown;
+                }
+                length += deflater.deflate(buf, length, buf.length - length);
+            }
+        } finally {
+            deflaters.release(deflater);
+        }
+
+        if (incompressibleProbe && length >= contents.length) {
+            return new CompressedData(ZipSource.STORED, crcValue, contents.length, contents, contents.length);
+        }
+        return new CompressedData(ZipSource.DEFLATED, crcValue, contents.length, buf, length);
+    }
+
+    /**
+     * Estimates whether the given contents are incompressible (e.g. because they
+     * are already compressed), by deflating a sample of them at the fastest level.
+     */
+    private static boolean isIncompressible(byte[] contents, DeflaterPool deflaters) {
+        if (contents.length < PROBE_MIN_SIZE) {
+            // small entries are cheap to deflate, so just try it
+            return false;
+        }
+
+        // sample from the middle, skipping any headers at the start
+        int sampleLength = Math.min(PROBE_SAMPLE_SIZE, contents.length);
+        int sampleStart = (contents.length - sampleLength) / 2;
+        byte[] buf = new byte[sampleLength + 64];
+        Deflater deflater = deflaters.acquire(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(contents, sampleStart, sampleLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < buf.length) {
+                length += deflater.deflate(buf, length, buf.length - length);
+            }
+            return !deflater.finished() || length > sampleLength * PROBE_MAX_RATIO;
+        } finally {
+            deflaters.release(deflater);
+        }
+    }
+
+    int getMethod() {
+        return this.method;
+    }
+
+    long getCrc() {
+        return this.crc;
+    }
+
+    long getSize() {
+        return this.size;
+    }
+
+    ByteBuffer getData() {
+        return ByteBuffer.wrap(this.data, 0, this.length);
+    }
+}
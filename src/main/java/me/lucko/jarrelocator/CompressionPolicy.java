@@ -0,0 +1,208 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how the entries of an output jar are compressed.
+ *
+ * <p>Each entry is given a compression level: {@link #STORED} to store it
+ * uncompressed, or a deflate level from 1 (fastest) to 9 (smallest), or
+ * {@link #DEFAULT_LEVEL}. Overrides are checked in the order they were added,
+ * and the first to match an entry's name decides its level; entries matching
+ * no override use the policy's level.</p>
+ *
+ * <p>Entries which are copied unchanged from the input jar keep their
+ * compressed form if they are already stored with the method chosen by the
+ * policy. Otherwise, they are decompressed and compressed again.</p>
+ *
+ * <p>Policies are immutable; the {@code with...} methods return a new policy.</p>
+ */
+public final class CompressionPolicy {
+
+    /** The level at which entries are stored without compression */
+    public static final int STORED = 0;
+
+    /** The default deflate level, a compromise between speed and size */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /** The default policy, which deflates every entry at the default level */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(DEFAULT_LEVEL, Collections.<LevelOverride>emptyList(), false);
+
+    /**
+     * Creates a policy which compresses every entry at the given level.
+     *
+     * @param level the compression level
+     * @return the policy
+     */
+    public static CompressionPolicy level(int level) {
+        return new CompressionPolicy(checkLevel(level), Collections.<LevelOverride>emptyList(), false);
+    }
+
+    /**
+     * Creates a policy which stores every entry without compression.
+     *
+     * @return the policy
+     */
+    public static CompressionPolicy stored() {
+        return level(STORED);
+    }
+
+    /** The level used for entries matching no override */
+    private final int level;
+    private final List<LevelOverride> overrides;
+    /** If entries which don't seem to shrink when deflated should be stored instead */
+    private final boolean incompressibleProbe;
+
+    private CompressionPolicy(int level, List<LevelOverride> overrides, boolean incompressibleProbe) {
+        this.level = level;
+        this.overrides = overrides;
+        this.incompressibleProbe = incompressibleProbe;
+    }
+
+    /**
+     * Returns a copy of this policy which uses the given level for entries
+     * whose path matches the given pattern.
+     *
+     * <p>Patterns use the same syntax as the includes and excludes of a
+     * {@link Relocation}, e.g. <code>"**&#47;*.png"</code> or <code>"natives/**"</code>.</p>
+     *
+     * @param pattern the path pattern
+     * @param level the compression level
+     * @return the new policy
+     */
+    public CompressionPolicy withPathLevel(String pattern, int level) {
+        return withOverride(new LevelOverride(SelectorUtils.compile(pattern, '/', true), pattern, null, checkLevel(level)));
+    }
+
+    /**
+     * Returns a copy of this policy which uses the given level for entries
+     * with the given file extension.
+     *
+     * @param extension the extension, with or without the leading dot, e.g. {@code "png"}.
+     *                  Extensions are matched ignoring case
+     * @param level the compression level
+     * @return the new policy
+     */
+    public CompressionPolicy withExtensionLevel(String extension, int level) {
+        String suffix = extension.startsWith(".") ? extension : "." + extension;
+        return withOverride(new LevelOverride(null, null, suffix, checkLevel(level)));
+    }
+
+    /**
+     * Returns a copy of this policy which stores entries (instead of deflating
+     * them) if they don't shrink when compressed.
+     *
+     * <p>Before an entry is deflated, a sample of it is compressed at the
+     * fastest level, and if the sample barely shrinks the entry is stored
+     * without deflating the rest. An entry which deflates to no smaller than
+     * its original size is stored too.</p>
+     *
+     * @param incompressibleProbe if the probe should be enabled
+     * @return the new policy
+     */
+    public CompressionPolicy withIncompressibleProbe(boolean incompressibleProbe) {
+        return new CompressionPolicy(this.level, this.overrides, incompressibleProbe);
+    }
+
+    private CompressionPolicy withOverride(LevelOverride override) {
+        List<LevelOverride> overrides = new ArrayList<>(this.overrides.size() + 1);
+        overrides.addAll(this.overrides);
+        overrides.add(override);
+        return new CompressionPolicy(this.level, Collections.unmodifiableList(overrides), this.incompressibleProbe);
+    }
+
+    /**
+     * Gets the compression level for the entry with the given name.
+     *
+     * @param name the name of the entry
+     * @return the compression level
+     */
+    int getLevel(String name) {
+        for (LevelOverride override : this.overrides) {
+            if (override.matches(name)) {
+                return override.level;
+            }
+        }
+        return this.level;
+    }
+
+    /**
+     * Gets the compression method for the entry with the given name.
+     *
+     * @param name the name of the entry
+     * @return {@link ZipSource#STORED} or {@link ZipSource#DEFLATED}
+     */
+    int getMethod(String name) {
+        return getLevel(name) == STORED ? ZipSource.STORED : ZipSource.DEFLATED;
+    }
+
+    boolean isIncompressibleProbe() {
+        return this.incompressibleProbe;
+    }
+
+    /**
+     * Adds the settings of this policy to a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     */
+    void fingerprint(Fingerprint fingerprint) {
+        fingerprint.add(this.level).add(this.incompressibleProbe).add(this.overrides.size());
+        for (LevelOverride override : this.overrides) {
+            fingerprint.add(override.patternSource).add(override.suffix).add(override.level);
+        }
+    }
+
+    private static int checkLevel(int level) {
+        if (level != DEFAULT_LEVEL && (level < STORED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return level;
+    }
+
+    /**
+     * A compression level used for the entries matching a path pattern or extension.
+     */
+    private static final class LevelOverride {
+        /** The path pattern, or null */
+        private final PathMatcher pattern;
+        /** The path pattern as given, or null */
+        private final String patternSource;
+        /** The name suffix, or null */
+        private final String suffix;
+        private final int level;
+
+        LevelOverride(PathMatcher pattern, String patternSource, String suffix, int level) {
+            this.pattern = pattern;
+            this.patternSource = patternSource;
+            this.suffix = suffix;
+            this.level = level;
+        }
+
+        boolean matches(String name) {
+            if (this.pattern != null) {
+                return this.pattern.matches(name);
+            }
+            int start = name.length() - this.suffix.length();
+            return start >= 0 && name.regionMatches(true, start, this.suffix, 0, this.suffix.length());
+        }
+    }
+}
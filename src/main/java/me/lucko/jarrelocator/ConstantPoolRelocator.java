@@ -0,0 +1,760 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relocates a class file by rewriting only the names held in its constant pool,
+ * copying the rest of the class file as-is.
+ *
+ * <p>Every reference to a CONSTANT_Utf8 entry which ASM's
+ * {@link org.objectweb.asm.commons.ClassRemapper} would remap is located (in the
+ * constant pool itself, and in the attributes which refer to Utf8 entries
+ * directly), and mapped with the {@link RelocatingRemapper} according to its
+ * role - class name, descriptor, signature, string constant and so on.</p>
+ *
+ * <p>Entries are rewritten in place. If the references to a single entry map
+ * to different values (e.g. an entry used both as a class name and as a member
+ * name), the entry keeps its original value for any reference which needs it,
+ * and the other references are redirected to new entries appended to the end
+ * of the constant pool. Constant pool indices are therefore stable, so code and
+ * attributes never need to be re-encoded.</p>
+ */
+final class ConstantPoolRelocator {
+
+    // The roles of references to Utf8 entries, which determine how they are mapped
+    private static final int IDENTITY = 0;
+    private static final int CLASS = 1;
+    private static final int VALUE = 2;
+    private static final int DESCRIPTOR = 3;
+    private static final int METHOD_DESCRIPTOR = 4;
+    private static final int NAME_AND_TYPE_DESCRIPTOR = 5;
+    private static final int CLASS_SIGNATURE = 6;
+    private static final int TYPE_SIGNATURE = 7;
+    private static final int SOURCE_FILE = 8;
+    private static final int INNER_CLASS_NAME = 9;
+
+    // The kinds of structure an attribute can be attached to
+    private static final int CLASS_ATTRIBUTE = 0;
+    private static final int FIELD_ATTRIBUTE = 1;
+    private static final int METHOD_ATTRIBUTE = 2;
+    private static final int CODE_ATTRIBUTE = 3;
+    private static final int RECORD_COMPONENT_ATTRIBUTE = 4;
+
+    private final RelocatingRemapper remapper;
+
+    ConstantPoolRelocator(RelocatingRemapper remapper) {
+        this.remapper = remapper;
+    }
+
+    /**
+     * Relocates the given class file.
+     *
+     * @param classFile the class file
+     * @param name the name of the class file entry
+     * @return the relocated class file, or null if the class file couldn't be
+     *         handled by this engine
+     */
+    byte[] relocate(byte[] classFile, String name) {
+        try {
+            return new Pass(classFile, name).run();
+        } catch (RuntimeException e) {
+            // unsupported or malformed, leave it to ASM
+            return null;
+        }
+    }
+
+    private static final class UnsupportedClassFileException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedClassFileException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * The state of relocating a single class file.
+     */
+    private final class Pass {
+        private final byte[] b;
+        private final String packageName;
+
+        private int constantCount;
+        private int[] constantOffsets;
+        private String[] utf8Values;
+        private int constantPoolEnd;
+
+        // the references to Utf8 entries, in ascending order of offset
+        private int siteCount = 0;
+        private int[] siteOffsets = new int[64];
+        private int[] siteRoles = new int[64];
+        private int[] siteContexts = new int[64];
+
+        Pass(byte[] classFile, String name) {
+            this.b = classFile;
+            this.packageName = name.substring(0, name.lastIndexOf('/') + 1);
+        }
+
+        byte[] run() {
+            readConstantPool();
+            readBody();
+            return rewrite();
+        }
+
+        private void readConstantPool() {
+            int count = u2(8);
+            this.constantCount = count;
+            this.constantOffsets = new int[count];
+            this.utf8Values = new String[count];
+
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+                this.constantOffsets[i] = offset;
+                int tag = this.b[offset];
+                switch (tag) {
+                    case 1: // Utf8
+                        offset += 3 + u2(offset + 1);
+                        break;
+                    case 7: // Class
+                        site(offset + 1, CLASS);
+                        offset += 3;
+                        break;
+                    case 8: // String
+                        site(offset + 1, VALUE);
+                        offset += 3;
+                        break;
+                    case 16: // MethodType
+                        site(offset + 1, METHOD_DESCRIPTOR);
+                        offset += 3;
+                        break;
+                    case 19: // Module
+                    case 20: // Package
+                        site(offset + 1, IDENTITY);
+                        offset += 3;
+                        break;
+                    case 12: // NameAndType
+                        site(offset + 1, IDENTITY);
+                        site(offset + 3, NAME_AND_TYPE_DESCRIPTOR);
+                        offset += 5;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++;
+                        break;
+                    default:
+                        throw new UnsupportedClassFileException("Unknown constant pool tag " + tag);
+                }
+            }
+            this.constantPoolEnd = offset;
+
+            // all sites found so far must refer to Utf8 entries
+            for (int i = 0; i < this.siteCount; i++) {
+                utf8(u2(this.siteOffsets[i]));
+            }
+        }
+
+        private void readBody() {
+            // access_flags, this_class, super_class
+            int offset = this.constantPoolEnd + 6;
+            offset += 2 + 2 * u2(offset);
+
+            // fields, then methods
+            for (int kind = FIELD_ATTRIBUTE; kind <= METHOD_ATTRIBUTE; kind++) {
+                int count = u2(offset);
+                offset += 2;
+                for (int i = 0; i < count; i++) {
+                    site(offset + 2, IDENTITY);
+                    site(offset + 4, kind == FIELD_ATTRIBUTE ? DESCRIPTOR : METHOD_DESCRIPTOR);
+                    offset = readAttributes(offset + 6, kind);
+                }
+            }
+
+            offset = readAttributes(offset, CLASS_ATTRIBUTE);
+            if (offset != this.b.length) {
+                throw new UnsupportedClassFileException("Trailing bytes after class file");
+            }
+        }
+
+        private int readAttributes(int offset, int kind) {
+            int count = u2(offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                site(offset, IDENTITY);
+                String name = utf8(u2(offset));
+                int length = u4(offset + 2);
+                int start = offset + 6;
+                int end = start + length;
+                int read = readAttribute(name, start, kind);
+                if (read != -1 && read != end) {
+                    throw new UnsupportedClassFileException("Malformed " + name + " attribute");
+                }
+                offset = end;
+            }
+            return offset;
+        }
+
+        /**
+         * Reads the references to Utf8 entries within an attribute.
+         *
+         * @return the offset of the end of the attribute, or -1 if the attribute
+         *         holds no such references
+         */
+        private int readAttribute(String name, int offset, int kind) {
+            switch (name) {
+                case "Signature":
+                    boolean typeSignature = kind != CLASS_ATTRIBUTE && kind != METHOD_ATTRIBUTE;
+                    site(offset, typeSignature ? TYPE_SIGNATURE : CLASS_SIGNATURE);
+                    return offset + 2;
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations":
+                    return readAnnotations(offset);
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations":
+                    return readTypeAnnotations(offset);
+                default:
+                    break;
+            }
+
+            switch (kind) {
+                case CLASS_ATTRIBUTE:
+                    return readClassAttribute(name, offset);
+                case METHOD_ATTRIBUTE:
+                    return readMethodAttribute(name, offset);
+                case CODE_ATTRIBUTE:
+                    return readCodeAttribute(name, offset);
+                default:
+                    return -1;
+            }
+        }
+
+        private int readClassAttribute(String name, int offset) {
+            switch (name) {
+                case "SourceFile":
+                    site(offset, SOURCE_FILE);
+                    return offset + 2;
+                case "InnerClasses": {
+                    int count = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < count; i++) {
+                        if (u2(offset + 4) != 0) {
+                            site(offset + 4, INNER_CLASS_NAME, offset);
+                        }
+                        offset += 8;
+                    }
+                    return offset;
+                }
+                case "Record": {
+                    int count = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < count; i++) {
+                        site(offset, IDENTITY);
+                        site(offset + 2, DESCRIPTOR);
+                        offset = readAttributes(offset + 4, RECORD_COMPONENT_ATTRIBUTE);
+                    }
+                    return offset;
+                }
+                case "Module": {
+                    optionalSite(offset + 4, IDENTITY);
+                    offset += 6;
+                    int requires = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < requires; i++) {
+                        optionalSite(offset + 4, IDENTITY);
+                        offset += 6;
+                    }
+                    for (int j = 0; j < 2; j++) { // exports, then opens
+                        int count = u2(offset);
+                        offset += 2;
+                        for (int i = 0; i < count; i++) {
+                            offset += 6 + 2 * u2(offset + 4);
+                        }
+                    }
+                    offset += 2 + 2 * u2(offset); // uses
+                    int provides = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < provides; i++) {
+                        offset += 4 + 2 * u2(offset + 2);
+                    }
+                    return offset;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private int readMethodAttribute(String name, int offset) {
+            switch (name) {
+                case "Code": {
+                    offset += 4;
+                    offset += 4 + u4(offset);
+                    offset += 2 + 8 * u2(offset);
+                    return readAttributes(offset, CODE_ATTRIBUTE);
+                }
+                case "RuntimeVisibleParameterAnnotations":
+                case "RuntimeInvisibleParameterAnnotations": {
+                    int count = this.b[offset] & 0xFF;
+                    offset += 1;
+                    for (int i = 0; i < count; i++) {
+                        offset = readAnnotations(offset);
+                    }
+                    return offset;
+                }
+                case "AnnotationDefault":
+                    return readElementValue(offset);
+                case "MethodParameters": {
+                    int count = this.b[offset] & 0xFF;
+                    offset += 1;
+                    for (int i = 0; i < count; i++) {
+                        optionalSite(offset, IDENTITY);
+                        offset += 4;
+                    }
+                    return offset;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private int readCodeAttribute(String name, int offset) {
+            switch (name) {
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable": {
+                    int role = name.equals("LocalVariableTable") ? DESCRIPTOR : TYPE_SIGNATURE;
+                    int count = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < count; i++) {
+                        site(offset + 4, IDENTITY);
+                        site(offset + 6, role);
+                        offset += 10;
+                    }
+                    return offset;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private int readAnnotations(int offset) {
+            int count = u2(offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                offset = readAnnotation(offset);
+            }
+            return offset;
+        }
+
+        private int readAnnotation(int offset) {
+            site(offset, DESCRIPTOR);
+            int pairs = u2(offset + 2);
+            offset += 4;
+            for (int i = 0; i < pairs; i++) {
+                site(offset, IDENTITY);
+                offset = readElementValue(offset + 2);
+            }
+            return offset;
+        }
+
+        private int readElementValue(int offset) {
+            int tag = this.b[offset];
+            offset += 1;
+            switch (tag) {
+                case 'B':
+                case 'C':
+                case 'D':
+                case 'F':
+                case 'I':
+                case 'J':
+                case 'S':
+                case 'Z':
+                    return offset + 2;
+                case 's':
+                    site(offset, VALUE);
+                    return offset + 2;
+                case 'e':
+                    site(offset, DESCRIPTOR);
+                    site(offset + 2, IDENTITY);
+                    return offset + 4;
+                case 'c':
+                    site(offset, DESCRIPTOR);
+                    return offset + 2;
+                case '@':
+                    return readAnnotation(offset);
+                case '[': {
+                    int count = u2(offset);
+                    offset += 2;
+                    for (int i = 0; i < count; i++) {
+                        offset = readElementValue(offset);
+                    }
+                    return offset;
+                }
+                default:
+                    throw new UnsupportedClassFileException("Unknown element value tag " + tag);
+            }
+        }
+
+        private int readTypeAnnotations(int offset) {
+            int count = u2(offset);
+            offset += 2;
+            for (int i = 0; i < count; i++) {
+                int targetType = this.b[offset] & 0xFF;
+                offset += 1;
+
+                // target_info
+                switch (targetType) {
+                    case 0x00:
+                    case 0x01:
+                    case 0x16:
+                        offset += 1;
+                        break;
+                    case 0x10:
+                    case 0x17:
+                    case 0x42:
+                    case 0x43:
+                    case 0x44:
+                    case 0x45:
+                    case 0x46:
+                        offset += 2;
+                        break;
+                    case 0x11:
+                    case 0x12:
+                        offset += 2;
+                        break;
+                    case 0x13:
+                    case 0x14:
+                    case 0x15:
+                        break;
+                    case 0x40:
+                    case 0x41:
+                        offset += 2 + 6 * u2(offset);
+                        break;
+                    case 0x47:
+                    case 0x48:
+                    case 0x49:
+                    case 0x4A:
+                    case 0x4B:
+                        offset += 3;
+                        break;
+                    default:
+                        throw new UnsupportedClassFileException("Unknown type annotation target " + targetType);
+                }
+
+                // type_path
+                offset += 1 + 2 * (this.b[offset] & 0xFF);
+                offset = readAnnotation(offset);
+            }
+            return offset;
+        }
+
+        private byte[] rewrite() {
+            int count = this.constantCount;
+
+            // group the sites by the entry they refer to
+            int[] firstSite = new int[count];
+            Arrays.fill(firstSite, -1);
+            int[] nextSite = new int[this.siteCount];
+            int[] lastSite = new int[count];
+            for (int i = 0; i < this.siteCount; i++) {
+                int index = u2(this.siteOffsets[i]);
+                nextSite[i] = -1;
+                if (firstSite[index] == -1) {
+                    firstSite[index] = i;
+                } else {
+                    nextSite[lastSite[index]] = i;
+                }
+                lastSite[index] = i;
+            }
+
+            String[] replacements = new String[count];
+            int[] redirects = new int[this.siteCount];
+            List<String> appended = new ArrayList<>();
+            Map<String, Integer> appendedIndices = new HashMap<>();
+            boolean changed = false;
+
+            String[] mapped = new String[this.siteCount];
+            for (int index = 1; index < count; index++) {
+                if (firstSite[index] == -1) {
+                    continue;
+                }
+
+                String original = this.utf8Values[index];
+                boolean keepOriginal = false;
+                boolean anyChanged = false;
+                for (int site = firstSite[index]; site != -1; site = nextSite[site]) {
+                    String value = map(site, original);
+                    mapped[site] = value;
+                    if (value.equals(original)) {
+                        keepOriginal = true;
+                    } else {
+                        anyChanged = true;
+                    }
+                }
+                if (!anyChanged) {
+                    continue;
+                }
+
+                changed = true;
+                String inPlace = keepOriginal ? original : mapped[firstSite[index]];
+                if (!keepOriginal) {
+                    replacements[index] = inPlace;
+                }
+
+                for (int site = firstSite[index]; site != -1; site = nextSite[site]) {
+                    String value = mapped[site];
+                    if (!value.equals(inPlace)) {
+                        Integer newIndex = appendedIndices.get(value);
+                        if (newIndex == null) {
+                            newIndex = count + appended.size();
+                            appended.add(value);
+                            appendedIndices.put(value, newIndex);
+                        }
+                        redirects[site] = newIndex;
+                    }
+                }
+            }
+
+            if (!changed) {
+                return this.b;
+            }
+
+            int newCount = count + appended.size();
+            if (newCount > 0xFFFF) {
+                throw new UnsupportedClassFileException("Too many constants");
+            }
+
+            Output out = new Output(this.b.length + 256);
+            out.write(this.b, 0, 8);
+            out.writeShort(newCount);
+
+            // the constant pool, with replaced Utf8 entries
+            int cursor = 0; // the next site to apply
+            for (int i = 1; i < count; i++) {
+                int start = this.constantOffsets[i];
+                if (start == 0) {
+                    continue; // the second slot of a long or double
+                }
+
+                int end = nextConstantOffset(i);
+                if (replacements[i] != null) {
+                    out.writeByte(1);
+                    out.writeUtf8(replacements[i]);
+                } else {
+                    cursor = copy(out, start, end, cursor, redirects);
+                }
+            }
+
+            for (String value : appended) {
+                out.writeByte(1);
+                out.writeUtf8(value);
+            }
+
+            // the rest of the class file
+            copy(out, this.constantPoolEnd, this.b.length, cursor, redirects);
+            return out.toByteArray();
+        }
+
+        private int nextConstantOffset(int index) {
+            for (int i = index + 1; i < this.constantCount; i++) {
+                if (this.constantOffsets[i] != 0) {
+                    return this.constantOffsets[i];
+                }
+            }
+            return this.constantPoolEnd;
+        }
+
+        /**
+         * Copies {@code b[start, end)} to the output, redirecting the sites within it.
+         *
+         * @return the index of the next site after the copied range
+         */
+        private int copy(Output out, int start, int end, int cursor, int[] redirects) {
+            // skip sites which precede the range, i.e. those in replaced entries
+            while (cursor < this.siteCount && this.siteOffsets[cursor] < start) {
+                cursor++;
+            }
+
+            int position = start;
+            while (cursor < this.siteCount && this.siteOffsets[cursor] < end) {
+                int siteOffset = this.siteOffsets[cursor];
+                if (redirects[cursor] != 0) {
+                    out.write(this.b, position, siteOffset - position);
+                    out.writeShort(redirects[cursor]);
+                    position = siteOffset + 2;
+                }
+                cursor++;
+            }
+            out.write(this.b, position, end - position);
+            return cursor;
+        }
+
+        private String map(int site, String value) {
+            RelocatingRemapper remapper = ConstantPoolRelocator.this.remapper;
+            switch (this.siteRoles[site]) {
+                case IDENTITY:
+                    return value;
+                case CLASS:
+                    return remapper.mapType(value);
+                case VALUE:
+                    return (String) remapper.mapValue(value);
+                case DESCRIPTOR:
+                    return remapper.mapDesc(value);
+                case METHOD_DESCRIPTOR:
+                    return remapper.mapMethodDesc(value);
+                case NAME_AND_TYPE_DESCRIPTOR:
+                    return value.startsWith("(") ? remapper.mapMethodDesc(value) : remapper.mapDesc(value);
+                case CLASS_SIGNATURE:
+                    return remapper.mapSignature(value, false);
+                case TYPE_SIGNATURE:
+                    return remapper.mapSignature(value, true);
+                case SOURCE_FILE: {
+                    // see RelocatingClassVisitor#visitSource
+                    String mappedName = remapper.map(this.packageName + value);
+                    return mappedName.substring(mappedName.lastIndexOf('/') + 1);
+                }
+                case INNER_CLASS_NAME: {
+                    int entry = this.siteContexts[site];
+                    String innerClass = className(u2(entry));
+                    String outerClass = u2(entry + 2) == 0 ? null : className(u2(entry + 2));
+                    return remapper.mapInnerClassName(innerClass, outerClass, value);
+                }
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private String className(int index) {
+            int offset = this.constantOffsets[index];
+            if (offset == 0 || this.b[offset] != 7) {
+                throw new UnsupportedClassFileException("Not a class constant: " + index);
+            }
+            return utf8(u2(offset + 1));
+        }
+
+        private String utf8(int index) {
+            String value = this.utf8Values[index];
+            if (value == null) {
+                int offset = this.constantOffsets[index];
+                if (offset == 0 || this.b[offset] != 1) {
+                    throw new UnsupportedClassFileException("Not a Utf8 constant: " + index);
+                }
+                value = ModifiedUtf8.decode(this.b, offset + 3, u2(offset + 1));
+                this.utf8Values[index] = value;
+            }
+            return value;
+        }
+
+        private void optionalSite(int offset, int role) {
+            if (u2(offset) != 0) {
+                site(offset, role);
+            }
+        }
+
+        private void site(int offset, int role) {
+            site(offset, role, 0);
+        }
+
+        private void site(int offset, int role, int context) {
+            if (this.siteCount == this.siteOffsets.length) {
+                int length = this.siteCount * 2;
+                this.siteOffsets = Arrays.copyOf(this.siteOffsets, length);
+                this.siteRoles = Arrays.copyOf(this.siteRoles, length);
+                this.siteContexts = Arrays.copyOf(this.siteContexts, length);
+            }
+            if (this.constantPoolEnd != 0) {
+                utf8(u2(offset));
+            }
+            this.siteOffsets[this.siteCount] = offset;
+            this.siteRoles[this.siteCount] = role;
+            this.siteContexts[this.siteCount] = context;
+            this.siteCount++;
+        }
+
+        private int u2(int offset) {
+            return ((this.b[offset] & 0xFF) << 8) | (this.b[offset + 1] & 0xFF);
+        }
+
+        private int u4(int offset) {
+            return ((this.b[offset] & 0xFF) << 24) | ((this.b[offset + 1] & 0xFF) << 16)
+                    | ((this.b[offset + 2] & 0xFF) << 8) | (this.b[offset + 3] & 0xFF);
+        }
+    }
+
+    /**
+     * A minimal growable byte buffer.
+     */
+    private static final class Output {
+        private byte[] buf;
+        private int count = 0;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (this.count + extra > this.buf.length) {
+                this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.count + extra));
+            }
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, this.buf, this.count, length);
+            this.count += length;
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            this.buf[this.count++] = (byte) value;
+        }
+
+        void writeShort(int value) {
+            ensure(2);
+            this.buf[this.count++] = (byte) (value >>> 8);
+            this.buf[this.count++] = (byte) value;
+        }
+
+        void writeUtf8(String value) {
+            byte[] bytes = ModifiedUtf8.encode(value);
+            if (bytes.length > 0xFFFF) {
+                throw new UnsupportedClassFileException("Constant too long");
+            }
+            writeShort(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this.buf, this.count);
+        }
+    }
+}
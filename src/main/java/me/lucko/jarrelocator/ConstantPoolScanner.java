@@ -0,0 +1,294 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Scans the constant pool of a class file for strings which could be affected
+ * by a set of {@link Relocation} rules.
+ *
+ * <p>Almost every name the remapper is asked to map is a CONSTANT_Utf8 entry,
+ * and a rule can only apply to a name which contains its pattern (in path or
+ * dotted form). The exception is the name of the source file, which is mapped
+ * with the package of the class prepended (see
+ * {@link RelocatingClassVisitor#visitSource(String, String)}), so it's scanned
+ * that way too. If nothing contains any pattern, relocating the class cannot
+ * change it, so it can be copied as-is.</p>
+ *
+ * <p>The patterns are compiled into an Aho-Corasick automaton over their
+ * modified UTF-8 encoding, so each entry is scanned once, byte by byte, without
+ * being decoded.</p>
+ */
+final class ConstantPoolScanner {
+
+    /** The name of the SourceFile attribute, in modified UTF-8 */
+    private static final byte[] SOURCE_FILE = ModifiedUtf8.encode("SourceFile");
+
+    /** Maps each byte to its class in the automaton's alphabet, 0 for bytes in no pattern */
+    private final int[] byteClasses = new int[256];
+    private final int alphabetSize;
+
+    /** The automaton's transitions, indexed by {@code state * alphabetSize + byteClass} */
+    private final int[] transitions;
+    /** If a pattern has been matched upon reaching each state */
+    private final boolean[] accepting;
+
+    ConstantPoolScanner(Collection<Relocation> rules) {
+        Set<String> patterns = new LinkedHashSet<>();
+        for (Relocation rule : rules) {
+            patterns.add(rule.getPathPattern());
+            patterns.add(rule.getPattern());
+        }
+
+        List<byte[]> encoded = new ArrayList<>(patterns.size());
+        int alphabetSize = 1;
+        for (String pattern : patterns) {
+            byte[] bytes = ModifiedUtf8.encode(pattern);
+            for (byte b : bytes) {
+                if (this.byteClasses[b & 0xFF] == 0) {
+                    this.byteClasses[b & 0xFF] = alphabetSize++;
+                }
+            }
+            encoded.add(bytes);
+        }
+        this.alphabetSize = alphabetSize;
+
+        // build the trie
+        int maxStates = 1;
+        for (byte[] bytes : encoded) {
+            maxStates += bytes.length;
+        }
+        int[] trie = new int[maxStates * alphabetSize];
+        boolean[] accepting = new boolean[maxStates];
+        int states = 1;
+        for (byte[] bytes : encoded) {
+            int state = 0;
+            for (byte b : bytes) {
+                int index = state * alphabetSize + this.byteClasses[b & 0xFF];
+                if (trie[index] == 0) {
+                    trie[index] = states++;
+                }
+                state = trie[index];
+            }
+            accepting[state] = true;
+        }
+
+        // convert the trie into a DFA, following failure links breadth-first
+        int[] failure = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < alphabetSize; c++) {
+            int child = trie[c];
+            if (child != 0) {
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            accepting[state] |= accepting[failure[state]];
+            for (int c = 0; c < alphabetSize; c++) {
+                int index = state * alphabetSize + c;
+                int fallback = trie[failure[state] * alphabetSize + c];
+                if (trie[index] == 0) {
+                    trie[index] = fallback;
+                } else {
+                    failure[trie[index]] = fallback;
+                    queue.add(trie[index]);
+                }
+            }
+        }
+
+        this.transitions = Arrays.copyOf(trie, states * alphabetSize);
+        this.accepting = Arrays.copyOf(accepting, states);
+    }
+
+    /**
+     * Tests whether any CONSTANT_Utf8 entry in the given class file, or its
+     * source file name qualified with its package, contains the pattern of
+     * any rule.
+     *
+     * @param classFile the class file
+     * @param name the name of the class's jar entry, or null to take its
+     *             package from the class itself
+     * @return true if the class may be affected by relocation, or if it
+     *         couldn't be parsed
+     */
+    boolean mayContainMatches(byte[] classFile, String name) {
+        if (this.accepting[0]) {
+            // an empty pattern matches everything
+            return true;
+        }
+
+        try {
+            int count = readUnsignedShort(classFile, 8);
+            int[] constantOffsets = new int[count];
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+                constantOffsets[i] = offset;
+                int tag = classFile[offset];
+                switch (tag) {
+                    case 1: // Utf8
+                        int length = readUnsignedShort(classFile, offset + 1);
+                        if (scan(classFile, offset + 3, offset + 3 + length)) {
+                            return true;
+                        }
+                        offset += 3 + length;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++;
+                        break;
+                    default:
+                        return true;
+                }
+            }
+            return sourceFileMayMatch(classFile, offset, constantOffsets, name);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Tests whether the source file name of a class, qualified with the
+     * package of the class, contains the pattern of any rule.
+     *
+     * @param classFile the class file
+     * @param offset the offset of the end of the constant pool
+     * @param constantOffsets the offset of each constant
+     * @param name the name of the class's jar entry, or null
+     * @return true if the source file name may be affected by relocation
+     */
+    private boolean sourceFileMayMatch(byte[] classFile, int offset, int[] constantOffsets, String name) {
+        int thisClass = readUnsignedShort(classFile, offset + 2);
+        offset += 6;
+        offset += 2 + 2 * readUnsignedShort(classFile, offset); // interfaces
+        for (int members = 0; members < 2; members++) { // fields, then methods
+            int memberCount = readUnsignedShort(classFile, offset);
+            offset += 2;
+            for (int i = 0; i < memberCount; i++) {
+                offset = skipAttributes(classFile, offset + 6);
+            }
+        }
+
+        int attributeCount = readUnsignedShort(classFile, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            int attributeName = constantOffsets[readUnsignedShort(classFile, offset)];
+            if (isUtf8(classFile, attributeName, SOURCE_FILE)) {
+                int source = constantOffsets[readUnsignedShort(classFile, offset + 6)];
+
+                // the package of the class, as RelocatingClassVisitor takes it
+                int state;
+                if (name != null) {
+                    byte[] packageName = ModifiedUtf8.encode(name.substring(0, name.lastIndexOf('/') + 1));
+                    state = advance(0, packageName, 0, packageName.length);
+                } else {
+                    int className = constantOffsets[readUnsignedShort(classFile, constantOffsets[thisClass] + 1)];
+                    int start = className + 3;
+                    int end = start + readUnsignedShort(classFile, className + 1);
+                    while (end > start && classFile[end - 1] != '/') {
+                        end--;
+                    }
+                    state = advance(0, classFile, start, end);
+                }
+                return state == -1 || advance(state, classFile, source + 3, source + 3 + readUnsignedShort(classFile, source + 1)) == -1;
+            }
+            offset += 6 + readInt(classFile, offset + 2);
+        }
+        return false;
+    }
+
+    private static int skipAttributes(byte[] classFile, int offset) {
+        int attributeCount = readUnsignedShort(classFile, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            offset += 6 + readInt(classFile, offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean isUtf8(byte[] classFile, int offset, byte[] value) {
+        if (classFile[offset] != 1 || readUnsignedShort(classFile, offset + 1) != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (classFile[offset + 3 + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean scan(byte[] bytes, int start, int end) {
+        return advance(0, bytes, start, end) == -1;
+    }
+
+    /**
+     * Runs the automaton over a region of bytes.
+     *
+     * @return the state the automaton is left in, or -1 if a pattern was matched
+     */
+    private int advance(int state, byte[] bytes, int start, int end) {
+        int[] transitions = this.transitions;
+        int[] byteClasses = this.byteClasses;
+        int alphabetSize = this.alphabetSize;
+
+        for (int i = start; i < end; i++) {
+            state = transitions[state * alphabetSize + byteClasses[bytes[i] & 0xFF]];
+            if (this.accepting[state]) {
+                return -1;
+            }
+        }
+        return state;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (readUnsignedShort(bytes, offset) << 16) | readUnsignedShort(bytes, offset + 2);
+    }
+}
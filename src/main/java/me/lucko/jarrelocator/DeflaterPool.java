@@ -0,0 +1,70 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater}s producing raw (nowrap) deflate streams, as used
+ * by zip entries.
+ *
+ * <p>Each deflater holds a few hundred KiB of native memory, which is slow to
+ * allocate and is only freed when the deflater is ended (or finalized), so they
+ * are reused rather than created per entry. The pool may be used by several
+ * threads at once.</p>
+ */
+final class DeflaterPool {
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Takes a deflater from the pool, creating one if the pool is empty.
+     *
+     * @param level the compression level to give the deflater
+     * @return a deflater, ready for new input
+     */
+    Deflater acquire(int level) {
+        Deflater deflater = this.deflaters.poll();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Returns a deflater to the pool.
+     *
+     * @param deflater the deflater, previously taken from {@link #acquire(int)}
+     */
+    void release(Deflater deflater) {
+        deflater.reset();
+        this.deflaters.add(deflater);
+    }
+
+    /**
+     * Ends the deflaters in the pool, releasing their native memory.
+     */
+    void clear() {
+        Deflater deflater;
+        while ((deflater = this.deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
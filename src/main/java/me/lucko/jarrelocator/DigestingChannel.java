@@ -0,0 +1,55 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * A channel which adds everything written through it to a digest, so a file
+ * can be hashed as it's written rather than read back afterwards.
+ */
+final class DigestingChannel implements WritableByteChannel {
+    private final WritableByteChannel channel;
+    private final MessageDigest digest;
+
+    DigestingChannel(WritableByteChannel channel, MessageDigest digest) {
+        this.channel = channel;
+        this.digest = digest;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int n = this.channel.write(src);
+        written.limit(written.position() + n);
+        this.digest.update(written);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
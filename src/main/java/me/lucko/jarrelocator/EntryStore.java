@@ -0,0 +1,432 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A store of relocated classes on disk, which saves relocating (and
+ * compressing) the same class with the same rules more than once, whether in
+ * the same jar or another.
+ *
+ * <p>Each class is stored under a key made from a hash of its contents and
+ * path, and a fingerprint of the settings which affect its output: the
+ * relocation rules, the class engine and the compression level. Classes which
+ * are unaffected by relocation are copied from the input jar as they are, so
+ * aren't stored.</p>
+ *
+ * <p>The store may be shared by several threads and processes. Classes are
+ * written to a temporary file and moved into the store atomically. Once the
+ * stored classes exceed the maximum size, the least recently used are deleted.
+ * Each process keeps to the maximum size for the classes it knows of: those in
+ * the store when it was opened, and those it has added since.</p>
+ *
+ * <p>The store is only an optimisation, so a class which can't be read from or
+ * written to it is relocated as usual. Stored classes are checked against
+ * their recorded size and CRC as they're read, and a damaged class is deleted
+ * and treated as missing.</p>
+ *
+ * @see RelocationEngine#withEntryStore(EntryStore)
+ */
+public final class EntryStore {
+
+    /** The start of each stored class, which changes whenever the format or output of relocation changes */
+    private static final int MAGIC = 0x4A524531; // JRE1
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+
+    private static final String ENTRY_SUFFIX = ".class";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** How long a temporary file is left before it's assumed to be abandoned */
+    private static final long TEMP_FILE_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    private final Path directory;
+    /** The maximum total size of the stored classes, in bytes */
+    private final long maximumSize;
+
+    /** The sizes of the stored classes, keyed by key, from least to most recently used */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    /** The total size of the stored classes, guarded by the index */
+    private long totalSize = 0;
+
+    /** The subdirectories which are known to exist */
+    private final Set<Path> subdirectories = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens a store, creating its directory if it doesn't exist.
+     *
+     * @param directory the directory holding the store
+     * @param maximumSize the maximum total size of the classes held, in bytes
+     * @throws IOException if the directory can't be created or read
+     */
+    public EntryStore(File directory, long maximumSize) throws IOException {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.directory = Files.createDirectories(directory.toPath()).toAbsolutePath().normalize();
+        this.maximumSize = maximumSize;
+
+        // index the classes already stored, least recently used first
+        List<StoredEntry> stored = new ArrayList<>();
+        long expiry = System.currentTimeMillis() - TEMP_FILE_EXPIRY;
+        Files.walkFileTree(this.directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                    stored.add(new StoredEntry(key, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } else if (name.endsWith(TEMP_SUFFIX) && attributes.lastModifiedTime().toMillis() < expiry) {
+                    Files.deleteIfExists(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        stored.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        synchronized (this.index) {
+            for (StoredEntry entry : stored) {
+                this.index.put(entry.key, entry.size);
+                this.totalSize += entry.size;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Gets the directory holding the store.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return this.directory.toFile();
+    }
+
+    /**
+     * Gets the maximum total size of the classes held by the store.
+     *
+     * @return the maximum size, in bytes
+     */
+    public long getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * Gets the number of classes which were found in the store.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Gets the number of classes which weren't found in the store, and had
+     * to be relocated.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Gets the number of classes held by the store.
+     *
+     * @return the number of classes
+     */
+    public int size() {
+        synchronized (this.index) {
+            return this.index.size();
+        }
+    }
+
+    /**
+     * Deletes every class held by the store, which this process knows of.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    public void clear() throws IOException {
+        synchronized (this.index) {
+            for (Iterator<Map.Entry<String, Long>> it = this.index.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> entry = it.next();
+                Files.deleteIfExists(path(entry.getKey()));
+                this.totalSize -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Computes the key of a class.
+     *
+     * @param fingerprint the fingerprint of the settings used to relocate it
+     * @param level the level it's compressed at
+     * @param name the path of the class in its jar
+     * @param classFile the class file
+     * @return the key
+     */
+    String key(String fingerprint, int level, String name, byte[] classFile) {
+        MessageDigest digest = Hashing.sha256();
+        digest.update(new Fingerprint().add(fingerprint).add(level).add(name).toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(classFile);
+        return Hashing.hex(digest.digest());
+    }
+
+    /**
+     * Gets a stored class.
+     *
+     * @param key the key
+     * @return the relocated and compressed class, or null if it isn't stored
+     */
+    CompressedData get(String key) {
+        Path path = path(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            remove(key);
+            this.misses.increment();
+            return null;
+        }
+
+        CompressedData data = decode(bytes);
+        if (data == null) {
+            // written by an incompatible version, truncated or corrupted
+            remove(key);
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // ignore
+            }
+            this.misses.increment();
+            return null;
+        }
+
+        synchronized (this.index) {
+            if (this.index.get(key) == null) {
+                // added by another process
+                this.index.put(key, (long) bytes.length);
+                this.totalSize += bytes.length;
+            }
+        }
+        try {
+            // record the use, so that the order of use survives a restart
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // ignore
+        }
+        this.hits.increment();
+        return data;
+    }
+
+    /**
+     * Stores a class.
+     *
+     * @param key the key
+     * @param data the relocated and compressed class
+     */
+    void put(String key, CompressedData data) {
+        Path path = path(key);
+        ByteBuffer contents = data.getData();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.put((byte) data.getMethod());
+        header.putInt((int) data.getCrc());
+        header.putInt((int) data.getSize());
+        header.flip();
+        long size = HEADER_SIZE + contents.remaining();
+
+        Path temp = null;
+        try {
+            if (!this.subdirectories.contains(path.getParent())) {
+                Files.createDirectories(path.getParent());
+                this.subdirectories.add(path.getParent());
+            }
+            temp = Files.createTempFile(this.directory, "entry-", TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {header, contents};
+                while (contents.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the class just won't be stored
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException suppressed) {
+                    // ignore
+                }
+            }
+            return;
+        }
+
+        synchronized (this.index) {
+            Long previous = this.index.put(key, size);
+            this.totalSize += size - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (this.index) {
+            Long size = this.index.remove(key);
+            if (size != null) {
+                this.totalSize -= size;
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used classes until the store fits within its
+     * maximum size. Must be called whilst holding the lock on the index.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = this.index.entrySet().iterator();
+        while (this.totalSize > this.maximumSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            try {
+                Files.deleteIfExists(path(entry.getKey()));
+            } catch (IOException e) {
+                // it'll be retried when the store is next opened
+            }
+            this.totalSize -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    private Path path(String key) {
+        // spread the classes between subdirectories, so no directory gets too large
+        return this.directory.resolve(key.substring(0, 2)).resolve(key + ENTRY_SUFFIX);
+    }
+
+    private static CompressedData decode(byte[] bytes) {
+        if (bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int method = buffer.get();
+        long crc = Integer.toUnsignedLong(buffer.getInt());
+        long size = Integer.toUnsignedLong(buffer.getInt());
+        if (method != ZipSource.STORED && method != ZipSource.DEFLATED) {
+            return null;
+        }
+        if (method == ZipSource.STORED && size != bytes.length - HEADER_SIZE) {
+            return null;
+        }
+        byte[] data = new byte[bytes.length - HEADER_SIZE];
+        buffer.get(data);
+        if (!isIntact(method, crc, size, data)) {
+            return null;
+        }
+        return CompressedData.of(method, crc, size, data);
+    }
+
+    /**
+     * Tests whether stored data decompresses to the size and CRC recorded for
+     * it, so that a damaged class is relocated again rather than copied into a
+     * jar.
+     */
+    private static boolean isIntact(int method, long crc, long size, byte[] data) {
+        if (method == ZipSource.STORED) {
+            return crc(data, data.length) == crc;
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            return false;
+        }
+
+        // the inflater may need an extra "dummy" byte after the compressed data
+        byte[] compressed = Arrays.copyOf(data, data.length + 1);
+        byte[] contents = new byte[(int) size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < contents.length) {
+                int n = inflater.inflate(contents, length, contents.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != contents.length || (!inflater.finished() && inflater.inflate(new byte[1]) != 0)) {
+                return false;
+            }
+            return crc(contents, length) == crc;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * A class found in the store when it was opened.
+     */
+    private static final class StoredEntry {
+        private final String key;
+        private final long size;
+        private final long lastUsed;
+
+        StoredEntry(String key, long size, long lastUsed) {
+            this.key = key;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+/**
+ * Builds a canonical description of the settings which affect the output of
+ * a relocation, so that outputs can be cached and reused.
+ *
+ * <p>Each value is written with its length, so that no two different
+ * sequences of values can produce the same fingerprint.</p>
+ */
+final class Fingerprint {
+
+    private final StringBuilder builder = new StringBuilder();
+
+    Fingerprint add(String value) {
+        if (value == null) {
+            this.builder.append("-;");
+        } else {
+            this.builder.append(value.length()).append(':').append(value);
+        }
+        return this;
+    }
+
+    Fingerprint add(int value) {
+        return add(Integer.toString(value));
+    }
+
+    Fingerprint add(boolean value) {
+        return add(Boolean.toString(value));
+    }
+
+    @Override
+    public String toString() {
+        return this.builder.toString();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of relocating a jar again, after a change to the rules, using
+ * the {@link SymbolIndex} of its previous output to copy the classes which
+ * the change can't affect from that output.
+ *
+ * <p>Also collects the packages referred to by each class, for the index of
+ * the new output.</p>
+ */
+final class IncrementalState implements Closeable {
+
+    /** The index of the previous output, or null if it can't be used */
+    private final SymbolIndex previous;
+    /** The path patterns of the rules which have changed since the previous output */
+    private final Set<String> changedPatterns;
+    /** The previous output, or null if it can't be used */
+    private final ZipReader previousOutput;
+    /** The entries of the previous output, keyed by name */
+    private final Map<String, ZipSource.Entry> previousEntries = new HashMap<>();
+
+    /** The packages referred to by each class in the input jar, keyed by its path */
+    private final Map<String, String[]> packages = new ConcurrentHashMap<>();
+
+    private IncrementalState(SymbolIndex previous, Set<String> changedPatterns, ZipReader previousOutput) {
+        this.previous = previous;
+        this.changedPatterns = changedPatterns;
+        this.previousOutput = previousOutput;
+        if (previousOutput != null) {
+            ZipSource.Entry entry;
+            while ((entry = previousOutput.nextEntry()) != null) {
+                this.previousEntries.put(entry.getName(), entry);
+            }
+        }
+    }
+
+    /**
+     * Prepares to relocate a jar, reusing its previous output if it was
+     * relocated from the same input with the same settings.
+     *
+     * @param output the output jar
+     * @param inputHash the hash of the input jar
+     * @param settings the fingerprint of the settings, other than the rules
+     * @param rules the rules
+     * @return the state
+     * @throws IOException if an i/o error occurs reading the previous output
+     */
+    static IncrementalState open(Path output, String inputHash, String settings, Collection<Relocation> rules) throws IOException {
+        SymbolIndex previous = SymbolIndex.read(SymbolIndex.pathFor(output));
+        if (previous == null || !previous.getInputHash().equals(inputHash) || !previous.getSettings().equals(settings)) {
+            return new IncrementalState(null, null, null);
+        }
+        Set<String> changedPatterns = previous.getChangedPatterns(rules);
+        if (changedPatterns == null || !Files.exists(output) || !Hashing.sha256(output).equals(previous.getOutputHash())) {
+            return new IncrementalState(null, null, null);
+        }
+        return new IncrementalState(previous, changedPatterns, new ZipReader(output.toFile()));
+    }
+
+    /**
+     * Gets the previous output, which reusable entries are copied from.
+     *
+     * @return the previous output
+     */
+    ZipSource getPreviousOutput() {
+        return this.previousOutput;
+    }
+
+    /**
+     * Gets the entry of the previous output which can be copied in place of
+     * relocating a class again, and if there is one, carries the packages the
+     * class refers to over to the new index.
+     *
+     * @param name the path of the class in the input jar
+     * @param mappedName the path of the relocated class
+     * @return the entry, or null if the class must be relocated
+     */
+    ZipSource.Entry getReusableEntry(String name, String mappedName) {
+        if (this.previous == null) {
+            return null;
+        }
+        String[] classPackages = this.previous.getPackages(name);
+        if (classPackages == null || SymbolIndex.isAffected(classPackages, this.changedPatterns)) {
+            return null;
+        }
+        ZipSource.Entry entry = this.previousEntries.get(mappedName);
+        if (entry != null) {
+            this.packages.put(name, classPackages);
+        }
+        return entry;
+    }
+
+    /**
+     * Records the packages referred to by a relocated class.
+     *
+     * @param name the path of the class in the input jar
+     * @param classFile the class file, before relocation
+     */
+    void record(String name, byte[] classFile) {
+        String[] classPackages = SymbolIndex.packagesOf(name, classFile);
+        if (classPackages != null) {
+            this.packages.put(name, classPackages);
+        }
+    }
+
+    /**
+     * Creates the index of the new output.
+     *
+     * @param inputHash the hash of the input jar
+     * @param outputHash the hash of the new output
+     * @param settings the fingerprint of the settings, other than the rules
+     * @param rules the rules
+     * @return the index
+     */
+    SymbolIndex toIndex(String inputHash, String outputHash, String settings, Collection<Relocation> rules) {
+        return SymbolIndex.of(inputHash, outputHash, settings, rules, this.packages);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.previousOutput != null) {
+            this.previousOutput.close();
+        }
+    }
+}
@@ -16,30 +16,66 @@
 
 package me.lucko.jarrelocator;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 /**
  * Relocates classes and resources within a jar file.
+ *
+ * <p>The jar may be read from and written to either files or streams. When
+ * reading from a stream, entries are relocated and written as they arrive,
+ * so (for example) a jar can be relocated whilst it is being downloaded.</p>
+ *
+ * <p>A relocator can only be {@link #run() run} once. To relocate several jars
+ * with the same rules, use a {@link RelocationEngine}, which compiles the
+ * rules once and can be shared. An engine can also relocate jars
+ * {@link RelocationEngine#relocateAsync(File, File, Executor) asynchronously}.</p>
  */
 public final class JarRelocator {
 
-    /** The input jar */
+    /** The input jar, or null if reading from a stream */
     private final File input;
-    /** The output jar */
+    /** The output jar, or null if writing to a stream */
     private final File output;
-    /** The relocating remapper */
-    private final RelocatingRemapper remapper;
+    /** The input jar stream, or null if reading from a file */
+    private final InputStream inputStream;
+    /** The output jar stream, or null if writing to a file */
+    private final OutputStream outputStream;
+    /** The relocation rules */
+    private final Collection<Relocation> relocations;
+
+    /** The cache used to memoize mapped names, or null */
+    private NameCache nameCache = null;
+    /** The engine used to relocate classes */
+    private ClassEngine classEngine = ClassEngine.ASM;
+    /** If stack map frames should be expanded when relocating classes with ASM */
+    private boolean expandFrames = true;
+    /** The policy deciding how entries in the output are compressed */
+    private CompressionPolicy compressionPolicy = CompressionPolicy.DEFAULT;
+    /** The executor used to relocate classes in parallel, or null to relocate them on the calling thread */
+    private Executor executor = null;
+    /** The cache of relocated jars, or null */
+    private RelocationCache cache = null;
+    /** The store of relocated classes, or null */
+    private EntryStore entryStore = null;
+    /** If an index of the output is kept, to relocate it incrementally when the rules change */
+    private boolean symbolIndex = false;
+    /** If an output which is identical to the existing file is left untouched */
+    private boolean skipIdenticalOutput = false;
+    /** If the output and its entries are hashed as they're written */
+    private boolean digests = false;
+    /** If the digests are written to a file alongside the output */
+    private boolean digestFile = false;
+    /** The result of {@link #run()}, or null if it hasn't completed */
+    private RelocationResult result = null;
 
     /** If the {@link #run()} method has been called yet */
     private final AtomicBoolean used = new AtomicBoolean(false);
@@ -52,9 +88,7 @@ public final class JarRelocator {
      * @param relocations the relocations
      */
     public JarRelocator(File input, File output, Collection<Relocation> relocations) {
-        this.input = input;
-        this.output = output;
-        this.remapper = new RelocatingRemapper(relocations);
+        this(input, output, null, null, relocations);
     }
 
     /**
@@ -65,34 +99,250 @@ public final class JarRelocator {
      * @param relocations the relocations
      */
     public JarRelocator(File input, File output, Map<String, String> relocations) {
+        this(input, output, null, null, toRelocations(relocations));
+    }
+
+    /**
+     * Creates a new instance which reads the input jar from a stream, and
+     * writes the output jar to a stream.
+     *
+     * <p>The input is read in the order its entries were written, and the
+     * central directory at its end is never consulted; see
+     * {@link #JarRelocator(InputStream, OutputStream, Collection)} for how
+     * this differs from reading a file.</p>
+     *
+     * @param input the input jar stream
+     * @param output the output jar stream
+     * @param relocations the relocations
+     */
+    public JarRelocator(InputStream input, OutputStream output, Map<String, String> relocations) {
+        this(null, null, input, output, toRelocations(relocations));
+    }
+
+    /**
+     * Creates a new instance which reads the input jar from a stream, and
+     * writes the output jar to a stream.
+     *
+     * <p>The input is read in the order its entries were written, and the
+     * central directory at its end is never consulted. For a jar written by
+     * the usual tools this makes no difference, but otherwise:</p>
+     * <ul>
+     *     <li>Any data before the first entry (e.g. a launcher script) is skipped.</li>
+     *     <li>Entries which the central directory doesn't refer to, e.g. those
+     *     left behind by tools which update a jar by appending to it, are
+     *     relocated too.</li>
+     *     <li>If several entries have the same name, the first is used and
+     *     the others are skipped.</li>
+     *     <li>Entries whose sizes aren't known until after their data (i.e.
+     *     which are followed by a data descriptor) must be deflated.</li>
+     * </ul>
+     *
+     * <p>Output is written as entries are relocated, with the central
+     * directory written once the end of the input is reached. The rest of the
+     * input after its last entry is read and discarded. Neither stream is
+     * closed by {@link #run()}.</p>
+     *
+     * @param input the input jar stream
+     * @param output the output jar stream
+     * @param relocations the relocations
+     */
+    public JarRelocator(InputStream input, OutputStream output, Collection<Relocation> relocations) {
+        this(null, null, input, output, relocations);
+    }
+
+    private JarRelocator(File input, File output, InputStream inputStream, OutputStream outputStream, Collection<Relocation> relocations) {
         this.input = input;
         this.output = output;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.relocations = relocations;
+    }
+
+    static Collection<Relocation> toRelocations(Map<String, String> relocations) {
         Collection<Relocation> c = new ArrayList<>(relocations.size());
         for (Map.Entry<String, String> entry : relocations.entrySet()) {
             c.add(new Relocation(entry.getKey(), entry.getValue()));
         }
-        this.remapper = new RelocatingRemapper(c);
+        return c;
+    }
+
+    /**
+     * Sets the cache used to memoize the results of mapping names.
+     *
+     * <p>The cache may be shared with other relocators, so long as they
+     * use the same relocation rules.</p>
+     *
+     * @param nameCache the cache, or null to disable caching
+     */
+    public void setNameCache(NameCache nameCache) {
+        this.nameCache = nameCache;
+    }
+
+    /**
+     * Sets the engine used to relocate classes. Defaults to {@link ClassEngine#ASM}.
+     *
+     * @param classEngine the engine
+     */
+    public void setClassEngine(ClassEngine classEngine) {
+        if (classEngine == null) {
+            throw new NullPointerException("classEngine");
+        }
+        this.classEngine = classEngine;
+    }
+
+    /**
+     * Sets whether stack map frames should be expanded when classes are relocated
+     * with the {@link ClassEngine#ASM ASM engine}. Defaults to true.
+     *
+     * <p>When false, frames are kept in their compressed form from input to
+     * output. This is faster, and frames are never made larger than they were.</p>
+     *
+     * @param expandFrames if frames should be expanded
+     */
+    public void setExpandFrames(boolean expandFrames) {
+        this.expandFrames = expandFrames;
+    }
+
+    /**
+     * Sets the policy deciding how entries in the output jar are compressed.
+     * Defaults to {@link CompressionPolicy#DEFAULT}.
+     *
+     * @param compressionPolicy the compression policy
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        if (compressionPolicy == null) {
+            throw new NullPointerException("compressionPolicy");
+        }
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets whether classes should be relocated in parallel, using the
+     * {@link ForkJoinPool#commonPool() common pool}. Defaults to false.
+     *
+     * <p>The output is the same either way: entries are always written in
+     * the order they appear in the input.</p>
+     *
+     * @param parallel if classes should be relocated in parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.executor = parallel ? ForkJoinPool.commonPool() : null;
+    }
+
+    /**
+     * Sets the executor used to relocate classes in parallel, or null to
+     * relocate them on the thread calling {@link #run()}.
+     *
+     * @param executor the executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the cache of relocated jars, which the output is taken from if the
+     * same jar has been relocated with the same settings before, or null to
+     * disable caching. Defaults to null.
+     *
+     * <p>The cache is only used when relocating files, not streams.</p>
+     *
+     * @param cache the cache
+     * @see RelocationCache
+     */
+    public void setCache(RelocationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the store of relocated classes, which classes are taken from if
+     * they have been relocated with the same settings before, or null to
+     * disable the store. Defaults to null.
+     *
+     * @param entryStore the store
+     * @see EntryStore
+     */
+    public void setEntryStore(EntryStore entryStore) {
+        this.entryStore = entryStore;
+    }
+
+    /**
+     * Sets if an index of the classes in the output is kept alongside it, so
+     * that when the rules change, only the classes they could affect are
+     * relocated again. Defaults to false.
+     *
+     * @param symbolIndex if an index should be kept
+     * @see RelocationEngine#withSymbolIndex(boolean)
+     */
+    public void setSymbolIndex(boolean symbolIndex) {
+        this.symbolIndex = symbolIndex;
+    }
+
+    /**
+     * Sets if an existing output file is left untouched when relocating
+     * produces exactly the same bytes, rather than rewritten. Defaults to
+     * false.
+     *
+     * @param skipIdenticalOutput if an identical output should be left untouched
+     * @see RelocationEngine#withSkipIdenticalOutput(boolean)
+     */
+    public void setSkipIdenticalOutput(boolean skipIdenticalOutput) {
+        this.skipIdenticalOutput = skipIdenticalOutput;
+    }
+
+    /**
+     * Sets if the SHA-256 digests of the output and of each entry in it are
+     * computed as they're written, and returned by {@link #getResult()}.
+     * Defaults to false.
+     *
+     * @param digests if digests should be computed
+     * @see RelocationEngine#withDigests(boolean)
+     */
+    public void setDigests(boolean digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * Sets if the digests of the output are computed and written to a file
+     * alongside it, named after the output with the suffix {@code .sha256}.
+     * Defaults to false.
+     *
+     * @param digestFile if a digest file should be written
+     * @see RelocationEngine#withDigestFile(boolean)
+     */
+    public void setDigestFile(boolean digestFile) {
+        this.digestFile = digestFile;
+    }
+
+    /**
+     * Gets the result of {@link #run() running} the relocation.
+     *
+     * @return the result, or null if the relocation hasn't completed
+     */
+    public RelocationResult getResult() {
+        return this.result;
     }
 
     /**
      * Executes the relocation task
      *
      * @throws IOException if an exception is encountered whilst performing i/o
-     *                     with the input or output file
+     *                     with the input or output
      */
     public void run() throws IOException {
         if (this.used.getAndSet(true)) {
             throw new IllegalStateException("#run has already been called on this instance");
         }
 
-        List<ResourceTransformer> transformers = new ArrayList<>();
-        transformers.add(new ServicesResourceTransformer());
-
-        try (JarOutputStream out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(this.output)))) {
-            try (JarFile in = new JarFile(this.input)) {
-                JarRelocatorTask task = new JarRelocatorTask(this.remapper, out, in, Collections.unmodifiableList(transformers));
-                task.processEntries();
+        ClassRelocator classRelocator = new ClassRelocator(this.relocations, this.nameCache, this.classEngine, this.expandFrames);
+        RelocationEngine engine = new RelocationEngine(classRelocator, this.compressionPolicy, this.executor, new DeflaterPool(), this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+        try {
+            if (this.inputStream != null) {
+                this.result = engine.relocate(this.inputStream, this.outputStream);
+            } else {
+                this.result = engine.relocate(this.input, this.output);
             }
+        } finally {
+            engine.releaseDeflaters();
         }
     }
 
@@ -16,24 +16,36 @@
 
 package me.lucko.jarrelocator;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
-
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 import java.util.regex.Pattern;
 
 /**
- * A task that copies {@link JarEntry jar entries} from a {@link JarFile jar input} to a
- * {@link JarOutputStream jar output}, applying the relocations defined by a
+ * A task that copies {@link ZipSource.Entry jar entries} from a {@link ZipSource jar input} to a
+ * {@link ZipWriter jar output}, applying the relocations defined by a
  * {@link RelocatingRemapper}.
+ *
+ * <p>Entries whose contents are left unchanged by relocation are copied in
+ * their compressed form, without being inflated and deflated again.</p>
+ *
+ * <p>Classes may be relocated and compressed in parallel on an {@link Executor}, but entries
+ * are always written in input order by the thread calling
+ * {@link #processEntries()}, so the output doesn't depend on scheduling.</p>
  */
 final class JarRelocatorTask {
 
@@ -52,42 +64,92 @@ final class JarRelocatorTask {
      */
     private static final Pattern SIGNATURE_PROPERTY_PATTERN = Pattern.compile(".*-Digest");
 
+    /** The maximum number of entries read ahead of the writer when relocating classes in parallel */
+    private static final int MAX_PENDING_ENTRIES = 256;
+
+    private final ClassRelocator classRelocator;
     private final RelocatingRemapper remapper;
-    private final JarOutputStream jarOut;
-    private final JarFile jarIn;
+    private final Executor executor;
+    private final ZipWriter jarOut;
+    private final ZipSource jarIn;
     private final List<ResourceTransformer> transformers;
+    /** Set to stop the task before its next entry */
+    private final AtomicBoolean cancelled;
+    /** The store of relocated classes, or null */
+    private final EntryStore entryStore;
+    /** The fingerprint of the settings affecting relocated classes, if there's a store */
+    private final String entryFingerprint;
+    /** The state of relocating the jar incrementally, or null */
+    private final IncrementalState incremental;
 
     private final Set<String> resources = new HashSet<>();
 
-    JarRelocatorTask(RelocatingRemapper remapper, JarOutputStream jarOut, JarFile jarIn, List<ResourceTransformer> transformers) {
-        this.remapper = remapper;
+    JarRelocatorTask(ClassRelocator classRelocator, Executor executor, ZipWriter jarOut, ZipSource jarIn, List<ResourceTransformer> transformers, AtomicBoolean cancelled, EntryStore entryStore, IncrementalState incremental) {
+        this.classRelocator = classRelocator;
+        this.remapper = classRelocator.getRemapper();
+        this.executor = executor;
         this.jarOut = jarOut;
         this.jarIn = jarIn;
         this.transformers = transformers;
+        this.cancelled = cancelled;
+        this.entryStore = entryStore;
+        this.entryFingerprint = entryStore == null ? null : entryFingerprint(classRelocator, jarOut);
+        this.incremental = incremental;
     }
 
+    private static String entryFingerprint(ClassRelocator classRelocator, ZipWriter jarOut) {
+        Fingerprint fingerprint = new Fingerprint();
+        classRelocator.fingerprint(fingerprint);
+        fingerprint.add(jarOut.isIncompressibleProbe());
+        return fingerprint.toString();
+    }
+
+    /**
+     * Copies and relocates every entry.
+     *
+     * @throws IOException if an i/o error occurs
+     * @throws CancellationException if the task is cancelled
+     */
     void processEntries() throws IOException {
-        for (Enumeration<JarEntry> entries = this.jarIn.entries(); entries.hasMoreElements(); ) {
-            JarEntry entry = entries.nextElement();
-
-            // The 'INDEX.LIST' file is an optional file, containing information about the packages
-            // defined in a jar. Instead of relocating the entries in it, we delete it, since it is
-            // optional anyway.
-            //
-            // We don't process directory entries, and instead opt to recreate them when adding
-            // classes/resources.
-            String name = entry.getName();
-            if (name.equals("META-INF/INDEX.LIST") || entry.isDirectory()) {
-                continue;
-            }
+        Deque<PendingEntry> pending = new ArrayDeque<>();
+        int maxPending = this.executor == null ? 0 : MAX_PENDING_ENTRIES;
+        try {
+            ZipSource.Entry entry;
+            while ((entry = this.jarIn.nextEntry()) != null) {
+                checkCancelled();
+
+                // The 'INDEX.LIST' file is an optional file, containing information about the packages
+                // defined in a jar. Instead of relocating the entries in it, we delete it, since it is
+                // optional anyway.
+                //
+                // We don't process directory entries, and instead opt to recreate them when adding
+                // classes/resources.
+                String name = entry.getName();
+                if (name.equals("META-INF/INDEX.LIST") || entry.isDirectory()) {
+                    continue;
+                }
+
+                // Signatures will become invalid after remapping, so we delete them to avoid making the output useless
+                if (SIGNATURE_FILE_PATTERN.matcher(name).matches()) {
+                    continue;
+                }
 
-            // Signatures will become invalid after remapping, so we delete them to avoid making the output useless
-            if (SIGNATURE_FILE_PATTERN.matcher(name).matches()) {
-                continue;
+                pending.add(prepareEntry(entry));
+                if (pending.size() > maxPending) {
+                    processEntry(pending.remove());
+                }
             }
 
-            try (InputStream entryIn = this.jarIn.getInputStream(entry)) {
-                processEntry(entry, entryIn);
+            while (!pending.isEmpty()) {
+                checkCancelled();
+                processEntry(pending.remove());
+            }
+        } finally {
+            // if we failed part way, don't bother relocating the rest
+            for (PendingEntry entry : pending) {
+                if (entry.relocatedClass != null) {
+                    entry.relocatedClass.cancel(false);
+                }
             }
         }
 
@@ -96,19 +158,55 @@ final class JarRelocatorTask {
         }
     }
 
-    private void processEntry(JarEntry entry, InputStream entryIn) throws IOException {
+    private void checkCancelled() {
+        if (this.cancelled.get()) {
+            throw new CancellationException("Relocation was cancelled");
+        }
+    }
+
+    private PendingEntry prepareEntry(ZipSource.Entry entry) {
+        String name = entry.getName();
+        if (!name.endsWith(".class")) {
+            return new PendingEntry(entry, null, null, null);
+        }
+
+        // Need to take the .class off for remapping evaluation
+        String unmappedName = name.substring(0, name.indexOf('.'));
+        String mappedName = this.remapper.map(unmappedName);
+
+        // If the class can't be affected by the rules which have changed, copy it from the previous output.
+        if (this.incremental != null) {
+            ZipSource.Entry previousEntry = this.incremental.getReusableEntry(name, mappedName + ".class");
+            if (previousEntry != null) {
+                return new PendingEntry(entry, mappedName, null, previousEntry);
+            }
+        }
+
+        FutureTask<CompressedData> relocatedClass = new FutureTask<>(() -> relocateClass(entry, mappedName));
+        if (this.executor == null) {
+            relocatedClass.run();
+        } else {
+            this.executor.execute(relocatedClass);
+        }
+        return new PendingEntry(entry, mappedName, relocatedClass, null);
+    }
+
+    private void processEntry(PendingEntry pending) throws IOException {
+        ZipSource.Entry entry = pending.entry;
         String name = entry.getName();
         String mappedName = this.remapper.map(name);
 
         // ensure the parent directory structure exists for the entry.
         processDirectory(mappedName, true);
 
-        if (name.endsWith(".class")) {
-            processClass(name, entryIn);
+        if (pending.previousEntry != null) {
+            this.jarOut.writeRaw(pending.mappedClassName + ".class", this.incremental.getPreviousOutput(), pending.previousEntry);
+        } else if (name.endsWith(".class")) {
+            processClass(entry, pending.mappedClassName, pending.relocatedClass);
         } else if (name.equals("META-INF/MANIFEST.MF")) {
-            processManifest(name, entryIn, entry.getTime());
+            processManifest(name, entry);
         } else if (!this.resources.contains(mappedName)) {
-            processResource(mappedName, entryIn, entry.getTime());
+            processResource(mappedName, entry);
         }
     }
 
@@ -126,83 +224,152 @@ final class JarRelocatorTask {
         }
 
         // directory entries must end in "/"
-        JarEntry entry = new JarEntry(name + "/");
-        this.jarOut.putNextEntry(entry);
+        this.jarOut.writeDirectory(name + "/");
         this.resources.add(name);
     }
 
-    private void processManifest(String name, InputStream entryIn, long lastModified) throws IOException {
-        Manifest in = new Manifest(entryIn);
+    private void processManifest(String name, ZipSource.Entry entry) throws IOException {
+        Manifest in;
+        try (InputStream entryIn = this.jarIn.getInputStream(entry)) {
+            in = new Manifest(entryIn);
+        }
         Manifest out = new Manifest();
 
         out.getMainAttributes().putAll(in.getMainAttributes());
 
-        for (Map.Entry<String, Attributes> entry : in.getEntries().entrySet()) {
+        for (Map.Entry<String, Attributes> section : in.getEntries().entrySet()) {
             Attributes outAttributes = new Attributes();
-            for (Map.Entry<Object, Object> property : entry.getValue().entrySet()) {
+            for (Map.Entry<Object, Object> property : section.getValue().entrySet()) {
                 String key = property.getKey().toString();
                 if (!SIGNATURE_PROPERTY_PATTERN.matcher(key).matches()) {
                     outAttributes.put(property.getKey(), property.getValue());
                 }
             }
-            out.getEntries().put(entry.getKey(), outAttributes);
+            out.getEntries().put(section.getKey(), outAttributes);
         }
 
-        JarEntry jarEntry = new JarEntry(name);
-        jarEntry.setTime(lastModified);
-        this.jarOut.putNextEntry(jarEntry);
-
-        out.write(this.jarOut);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        out.write(bytes);
+        this.jarOut.write(name, bytes.toByteArray(), entry.getDosTime());
 
         this.resources.add(name);
     }
 
-    private void processResource(String name, InputStream entryIn, long lastModified) throws IOException {
+    private void processResource(String name, ZipSource.Entry entry) throws IOException {
         for (ResourceTransformer transformer : this.transformers) {
             if (transformer.shouldTransformResource(name)) {
-                transformer.processResource(name, entryIn, this.remapper.getRules());
+                try (InputStream entryIn = this.jarIn.getInputStream(entry)) {
+                    transformer.processResource(name, entryIn, this.remapper.getRules());
+                }
                 return;
             }
         }
 
-        JarEntry jarEntry = new JarEntry(name);
-        jarEntry.setTime(lastModified);
-
-        this.jarOut.putNextEntry(jarEntry);
-        copy(entryIn, this.jarOut);
+        // The contents of the resource are unchanged, so copy it without recompressing it,
+        // unless it needs to be compressed differently.
+        if (this.jarOut.canWriteRaw(name, entry)) {
+            this.jarOut.writeRaw(name, this.jarIn, entry);
+        } else {
+            this.jarOut.write(name, this.jarIn.read(entry), entry.getDosTime());
+        }
 
         this.resources.add(name);
     }
 
-    private void processClass(String name, InputStream entryIn) throws IOException {
-        ClassReader classReader = new ClassReader(entryIn);
-        ClassWriter classWriter = new ClassWriter(0);
-        RelocatingClassVisitor classVisitor = new RelocatingClassVisitor(classWriter, this.remapper, name);
+    private void processClass(ZipSource.Entry entry, String mappedName, FutureTask<CompressedData> relocatedClass) throws IOException {
+        CompressedData classData = await(relocatedClass);
 
-        try {
-            classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
-        } catch (Throwable e) {
-            throw new RuntimeException("Error processing class " + name, e);
+        // Now we put the .class back on so the class file is written out with the right extension.
+        if (classData == null) {
+            this.jarOut.writeRaw(mappedName + ".class", this.jarIn, entry);
+        } else {
+            this.jarOut.writeCompressed(mappedName + ".class", classData);
+        }
+    }
+
+    /**
+     * Relocates and compresses a class entry.
+     *
+     * <p>This may be called concurrently, from the {@link #executor}, so
+     * that both relocation and compression are done in parallel.</p>
+     *
+     * @param entry the class entry
+     * @param mappedName the relocated name of the class
+     * @return the compressed relocated class file, or null if the class can be copied as-is
+     * @throws IOException if an i/o error occurs reading the entry
+     */
+    private CompressedData relocateClass(ZipSource.Entry entry, String mappedName) throws IOException {
+        byte[] classBytes = this.jarIn.read(entry);
+        String mappedEntryName = mappedName + ".class";
+        if (this.incremental != null) {
+            this.incremental.record(entry.getName(), classBytes);
         }
 
-        byte[] renamedClass = classWriter.toByteArray();
+        // Classes unaffected by relocation are usually copied as-is, so there's no need to store them.
+        String key = null;
+        if (this.entryStore != null && this.classRelocator.mayRelocate(classBytes, entry.getName())) {
+            key = this.entryStore.key(this.entryFingerprint, this.jarOut.getLevel(mappedEntryName), entry.getName(), classBytes);
+            CompressedData stored = this.entryStore.get(key);
+            if (stored != null) {
+                return stored;
+            }
+        }
 
-        // Need to take the .class off for remapping evaluation
-        String mappedName = this.remapper.map(name.substring(0, name.indexOf('.')));
+        byte[] relocatedBytes = this.classRelocator.relocate(classBytes, entry.getName());
 
-        // Now we put it back on so the class file is written out with the right extension.
-        this.jarOut.putNextEntry(new JarEntry(mappedName + ".class"));
-        this.jarOut.write(renamedClass);
+        // If the class was unchanged by relocation, copy it without recompressing it (if it's
+        // already compressed the way we want).
+        if (relocatedBytes == classBytes && this.jarOut.canWriteRaw(mappedEntryName, entry)) {
+            return null;
+        }
+        CompressedData compressed = this.jarOut.compress(mappedEntryName, relocatedBytes);
+        if (key != null) {
+            this.entryStore.put(key, compressed);
+        }
+        return compressed;
     }
 
-    private static void copy(InputStream from, OutputStream to) throws IOException {
-        byte[] buf = new byte[8192];
-        while (true) {
-            int n = from.read(buf);
-            if (n == -1) {
-                break;
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        // If the executor hasn't started the task yet, run it here rather than wait for it. This keeps
+        // the writer busy, and means it can't deadlock when it's running on the same executor.
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst relocating classes");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-            to.write(buf, 0, n);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * An entry waiting to be written.
+     */
+    private static final class PendingEntry {
+        private final ZipSource.Entry entry;
+        /** The relocated name of the class, or null if the entry isn't a class */
+        private final String mappedClassName;
+        /** The relocated class file, or null if the entry isn't a class or is copied from the previous output */
+        private final FutureTask<CompressedData> relocatedClass;
+        /** The entry of the previous output to copy in place of relocating the class, or null */
+        private final ZipSource.Entry previousEntry;
+
+        PendingEntry(ZipSource.Entry entry, String mappedClassName, FutureTask<CompressedData> relocatedClass, ZipSource.Entry previousEntry) {
+            this.entry = entry;
+            this.mappedClassName = mappedClassName;
+            this.relocatedClass = relocatedClass;
+            this.previousEntry = previousEntry;
         }
     }
 }
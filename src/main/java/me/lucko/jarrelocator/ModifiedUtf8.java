@@ -0,0 +1,70 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+/**
+ * Encodes and decodes the modified UTF-8 used by CONSTANT_Utf8 entries in class files.
+ *
+ * <a href="https://docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html#jvms-4.4.7">Specification</a>
+ */
+final class ModifiedUtf8 {
+
+    static byte[] encode(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char ch = string.charAt(i);
+            length += ch != 0 && ch < 0x80 ? 1 : ch < 0x800 ? 2 : 3;
+        }
+
+        byte[] bytes = new byte[length];
+        int j = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char ch = string.charAt(i);
+            if (ch != 0 && ch < 0x80) {
+                bytes[j++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[j++] = (byte) (0xC0 | (ch >> 6));
+                bytes[j++] = (byte) (0x80 | (ch & 0x3F));
+            } else {
+                bytes[j++] = (byte) (0xE0 | (ch >> 12));
+                bytes[j++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[j++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    static String decode(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = offset + length;
+        while (offset < end) {
+            int b = bytes[offset++] & 0xFF;
+            if ((b & 0x80) == 0) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[offset++] & 0x3F));
+            } else {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[offset++] & 0x3F) << 6) | (bytes[offset++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private ModifiedUtf8() {
+    }
+}
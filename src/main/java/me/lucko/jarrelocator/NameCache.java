@@ -0,0 +1,215 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of the results of mapping internal names.
+ *
+ * <p>Names which are left unchanged by the relocation rules are cached too,
+ * so repeated lookups of common names (e.g. {@code java/lang/String}) cost a
+ * single hash probe.</p>
+ *
+ * <p>A cache holds results computed from a particular set of rules, so it
+ * must only be shared between relocators which use the same rules.</p>
+ */
+public final class NameCache {
+
+    /**
+     * The policy used to make room for new names once a cache is full.
+     */
+    public enum EvictionPolicy {
+
+        /**
+         * Evict the names which were added least recently.
+         */
+        FIFO,
+
+        /**
+         * Evict the names which were added least recently, unless they have
+         * been read since they were last considered for eviction.
+         *
+         * <p>This approximates LRU eviction without writes on the read path.</p>
+         */
+        SECOND_CHANCE,
+
+        /**
+         * Never evict names: once the cache is full, no further names are added.
+         */
+        NONE
+    }
+
+    /** The maximum number of names to hold */
+    private final int maximumSize;
+    /** The eviction policy */
+    private final EvictionPolicy policy;
+
+    private final ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<>();
+    private final Queue<Node> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maximumSize the maximum number of names to hold
+     * @param policy the eviction policy
+     */
+    public NameCache(int maximumSize, EvictionPolicy policy) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.maximumSize = maximumSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates a new cache using the {@link EvictionPolicy#SECOND_CHANCE} policy.
+     *
+     * @param maximumSize the maximum number of names to hold
+     */
+    public NameCache(int maximumSize) {
+        this(maximumSize, EvictionPolicy.SECOND_CHANCE);
+    }
+
+    /**
+     * Gets the number of lookups which were answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups which were not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Gets the number of names currently held.
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Removes all names from the cache. The hit and miss counts are retained.
+     */
+    public void clear() {
+        this.evictionQueue.clear();
+        this.map.clear();
+        this.size.set(0);
+    }
+
+    String get(String name) {
+        Node node = this.map.get(name);
+        if (node == null) {
+            this.misses.increment();
+            return null;
+        }
+
+        // avoid writing to the node unless necessary
+        if (this.policy == EvictionPolicy.SECOND_CHANCE && !node.referenced) {
+            node.referenced = true;
+        }
+        this.hits.increment();
+        return node.value;
+    }
+
+    void put(String name, String mappedName) {
+        if (this.policy == EvictionPolicy.NONE) {
+            putWithoutEviction(name, mappedName);
+            return;
+        }
+
+        Node node = new Node(name, mappedName);
+        if (this.map.putIfAbsent(name, node) != null) {
+            return;
+        }
+
+        this.evictionQueue.add(node);
+        if (this.size.incrementAndGet() > this.maximumSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Adds a name under the {@link EvictionPolicy#NONE} policy. Room for the
+     * name is reserved before it's added, so that concurrent puts can't take
+     * the cache past its maximum size.
+     */
+    private void putWithoutEviction(String name, String mappedName) {
+        int size;
+        do {
+            size = this.size.get();
+            if (size >= this.maximumSize) {
+                return;
+            }
+        } while (!this.size.compareAndSet(size, size + 1));
+
+        if (this.map.putIfAbsent(name, new Node(name, mappedName)) != null) {
+            this.size.decrementAndGet();
+        }
+    }
+
+    private void evict() {
+        while (this.size.get() > this.maximumSize) {
+            Node node = this.evictionQueue.poll();
+            if (node == null) {
+                return;
+            }
+
+            if (node.referenced) {
+                node.referenced = false;
+                this.evictionQueue.add(node);
+                continue;
+            }
+
+            if (this.map.remove(node.key, node)) {
+                this.size.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class Node {
+        private final String key;
+        private final String value;
+        private volatile boolean referenced = false;
+
+        Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
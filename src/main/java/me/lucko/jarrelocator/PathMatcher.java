@@ -0,0 +1,44 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+/**
+ * A path pattern which has been compiled by {@link SelectorUtils#compile(String, boolean)}.
+ */
+interface PathMatcher {
+
+    /**
+     * Tests whether the given path matches this pattern.
+     *
+     * @param path the path
+     * @return true if the path matches
+     */
+    default boolean matches(String path) {
+        return matches(path, path.length());
+    }
+
+    /**
+     * Tests whether the first {@code length} characters of the given path
+     * match this pattern.
+     *
+     * @param path the path
+     * @param length the length of the path to consider
+     * @return true if the path matches
+     */
+    boolean matches(String path, int length);
+
+}
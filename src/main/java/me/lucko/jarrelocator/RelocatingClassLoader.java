@@ -0,0 +1,260 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class loader which loads classes and resources from a jar, relocating
+ * them as they are loaded, instead of relocating the whole jar up front.
+ *
+ * <p>When the loader is created, the name of every entry in the jar is
+ * relocated, so that relocated names can be mapped back to the entries they
+ * came from. Classes are then only read and relocated when they are first
+ * loaded. Resources keep their contents, except for service files (in
+ * {@code META-INF/services/}), which are relocated and merged as they would
+ * be by a {@link JarRelocator}, and cached by the loader.</p>
+ *
+ * <p>As usual, classes and resources are looked for in the parent loader
+ * first. The loader is parallel capable.</p>
+ */
+public final class RelocatingClassLoader extends ClassLoader implements Closeable {
+
+    private static final String SERVICES_PATH = "META-INF/services/";
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final ClassRelocator relocator;
+    private final ZipReader jar;
+    /** The URL of the jar, which resource URLs are relative to */
+    private final String jarUrl;
+    private final ProtectionDomain protectionDomain;
+
+    /** The entries of the jar, keyed by their relocated names */
+    private final Map<String, ZipSource.Entry> entries = new HashMap<>();
+    /** The service files of the jar, keyed by their relocated names */
+    private final Map<String, List<ZipSource.Entry>> serviceFiles = new HashMap<>();
+    /** The relocated contents of the service files which have been loaded */
+    private final Map<String, byte[]> serviceFileCache = new ConcurrentHashMap<>();
+
+    private final URLStreamHandler urlHandler = new ResourceHandler();
+
+    /**
+     * Creates a new loader.
+     *
+     * @param jar the jar to load classes from
+     * @param relocations the relocations
+     * @param parent the parent class loader
+     * @throws IOException if an i/o error occurs reading the jar
+     */
+    public RelocatingClassLoader(File jar, Collection<Relocation> relocations, ClassLoader parent) throws IOException {
+        this(jar, new ClassRelocator(relocations), parent);
+    }
+
+    /**
+     * Creates a new loader.
+     *
+     * @param jar the jar to load classes from
+     * @param relocator the relocator used to relocate classes
+     * @param parent the parent class loader
+     * @throws IOException if an i/o error occurs reading the jar
+     */
+    public RelocatingClassLoader(File jar, ClassRelocator relocator, ClassLoader parent) throws IOException {
+        super(parent);
+        this.relocator = relocator;
+        URL url = jar.toURI().toURL();
+        this.jarUrl = url.toString();
+        this.protectionDomain = new ProtectionDomain(new CodeSource(url, (Certificate[]) null), null, this, null);
+
+        // classes may still be loading from other threads when the loader is closed, so
+        // the jar isn't mapped (reading a released mapping would crash the JVM)
+        this.jar = new ZipReader(jar, false);
+        try {
+            Collection<Relocation> rules = relocator.getRemapper().getRules();
+            ZipSource.Entry entry;
+            while ((entry = this.jar.nextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                if (name.startsWith(SERVICES_PATH) && name.length() > SERVICES_PATH.length()) {
+                    String mappedName = ServicesResourceTransformer.relocatePath(name, rules);
+                    this.serviceFiles.computeIfAbsent(mappedName, k -> new ArrayList<>()).add(entry);
+                } else {
+                    // as in a relocated jar, the first entry with a given name wins
+                    this.entries.putIfAbsent(this.relocator.mapEntryName(name), entry);
+                }
+            }
+        } catch (RuntimeException e) {
+            this.jar.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        ZipSource.Entry entry = this.entries.get(name.replace('.', '/').concat(".class"));
+        if (entry == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        byte[] classFile;
+        try {
+            classFile = this.relocator.relocate(this.jar.read(entry), entry.getName());
+        } catch (IOException | RuntimeException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        int index = name.lastIndexOf('.');
+        if (index != -1) {
+            ensurePackageDefined(name.substring(0, index));
+        }
+        return defineClass(name, classFile, 0, classFile.length, this.protectionDomain);
+    }
+
+    @SuppressWarnings("deprecation") // getPackage is deprecated from Java 9, in favour of getDefinedPackage
+    private void ensurePackageDefined(String packageName) {
+        if (getPackage(packageName) != null) {
+            return;
+        }
+        try {
+            definePackage(packageName, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException e) {
+            // defined concurrently by another thread
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        if (!this.entries.containsKey(name) && !this.serviceFiles.containsKey(name)) {
+            return null;
+        }
+        try {
+            return new URL("jar-relocator", null, -1, this.jarUrl + "!/" + name, this.urlHandler);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        URL url = findResource(name);
+        return url == null ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singletonList(url));
+    }
+
+    /**
+     * Gets the relocated contents of a resource.
+     *
+     * @param name the relocated name of the resource
+     * @return the contents, or null if there is no such resource
+     * @throws IOException if an i/o error occurs reading the jar
+     */
+    private byte[] readResource(String name) throws IOException {
+        ZipSource.Entry entry = this.entries.get(name);
+        if (entry != null) {
+            return this.jar.read(entry);
+        }
+
+        List<ZipSource.Entry> serviceFiles = this.serviceFiles.get(name);
+        if (serviceFiles == null) {
+            return null;
+        }
+
+        byte[] contents = this.serviceFileCache.get(name);
+        if (contents == null) {
+            ServicesResourceTransformer transformer = new ServicesResourceTransformer();
+            for (ZipSource.Entry serviceFile : serviceFiles) {
+                try (InputStream in = this.jar.getInputStream(serviceFile)) {
+                    transformer.processResource(serviceFile.getName(), in, this.relocator.getRemapper().getRules());
+                }
+            }
+            contents = transformer.getOutput().getOrDefault(name, new byte[0]);
+            this.serviceFileCache.putIfAbsent(name, contents);
+        }
+        return contents;
+    }
+
+    /**
+     * Closes the jar. Classes which have already been loaded are unaffected,
+     * but no more classes or resources can be loaded.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        this.jar.close();
+    }
+
+    /**
+     * Opens connections to the resources of the loader.
+     */
+    private final class ResourceHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String name = url.getFile().substring(RelocatingClassLoader.this.jarUrl.length() + 2);
+            byte[] contents = readResource(name);
+            if (contents == null) {
+                throw new FileNotFoundException(url.toString());
+            }
+
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                    this.connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(contents);
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    return contents.length;
+                }
+
+                @Override
+                public int getContentLength() {
+                    return contents.length;
+                }
+            };
+        }
+    }
+}
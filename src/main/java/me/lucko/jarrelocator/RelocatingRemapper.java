@@ -19,22 +19,22 @@ package me.lucko.jarrelocator;
 import org.objectweb.asm.commons.Remapper;
 
 import java.util.Collection;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Remaps class names and types using defined {@link Relocation} rules.
  */
 final class RelocatingRemapper extends Remapper {
-    private static final Pattern CLASS_PATTERN = Pattern.compile("(\\[*)?L(.+);");
-
     // https://docs.oracle.com/javase/10/docs/specs/jar/jar.html#multi-release-jar-files
-    private static final Pattern VERSION_PATTERN = Pattern.compile("^(META-INF/versions/\\d+/)(.*)$");
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
 
     private final Collection<Relocation> rules;
+    private final RelocationIndex index;
+    private final NameCache cache;
 
-    RelocatingRemapper(Collection<Relocation> rules) {
+    RelocatingRemapper(Collection<Relocation> rules, NameCache cache) {
         this.rules = rules;
+        this.index = new RelocationIndex(rules);
+        this.cache = cache;
     }
 
     public Collection<Relocation> getRules() {
@@ -43,6 +43,19 @@ final class RelocatingRemapper extends Remapper {
 
     @Override
     public String map(String name) {
+        if (this.cache == null) {
+            return map0(name);
+        }
+
+        String mappedName = this.cache.get(name);
+        if (mappedName == null) {
+            mappedName = map0(name);
+            this.cache.put(name, mappedName);
+        }
+        return mappedName;
+    }
+
+    private String map0(String name) {
         String relocatedName = relocate(name, false);
         if (relocatedName != null) {
             return relocatedName;
@@ -52,6 +65,7 @@ final class RelocatingRemapper extends Remapper {
 
     @Override
     public Object mapValue(Object object) {
+        // string constants are not cached, they rarely repeat enough to be worth it
         if (object instanceof String) {
             String relocatedName = relocate((String) object, true);
             if (relocatedName != null) {
@@ -62,32 +76,98 @@ final class RelocatingRemapper extends Remapper {
     }
 
     private String relocate(String name, boolean isStringValue) {
-        String prefix = "";
-        String suffix = "";
+        int start = 0;
+        int end = name.length();
 
+        // array/object descriptors, equivalent to matching "(\\[*)?L(.+);"
         if (isStringValue) {
-            Matcher m = CLASS_PATTERN.matcher(name);
-            if (m.matches()) {
-                prefix = m.group(1) + "L";
-                name = m.group(2);
-                suffix = ";";
+            int descriptorStart = descriptorStart(name);
+            if (descriptorStart != -1) {
+                start = descriptorStart;
+                end--;
             }
         }
 
-        Matcher m = VERSION_PATTERN.matcher(name);
-        if (m.matches()) {
-            prefix = m.group(1);
-            name = m.group(2);
+        // multi-release paths, equivalent to matching "^(META-INF/versions/\\d+/)(.*)$"
+        int versionedStart = versionedPathStart(name, start, end);
+        boolean descriptor = end != name.length();
+        if (versionedStart != -1) {
+            start = versionedStart;
         }
 
-        for (Relocation r : this.rules) {
-            if (isStringValue && r.canRelocateClass(name)) {
-                return prefix + r.relocateClass(name) + suffix;
-            } else if (r.canRelocatePath(name)) {
-                return prefix + r.relocatePath(name) + suffix;
-            }
+        String innerName = start == 0 && !descriptor ? name : name.substring(start, end);
+        String relocatedName = this.index.relocate(innerName, isStringValue);
+        if (relocatedName == null) {
+            return null;
+        }
+        if (start == 0 && !descriptor) {
+            return relocatedName;
+        }
+
+        StringBuilder sb = new StringBuilder(name.length() - innerName.length() + relocatedName.length());
+        sb.append(name, 0, start).append(relocatedName);
+        if (descriptor) {
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the index of the class name within an array or object descriptor.
+     *
+     * @return the index, or -1 if the name isn't a descriptor
+     */
+    private static int descriptorStart(String name) {
+        int length = name.length();
+        if (length < 3 || name.charAt(length - 1) != ';') {
+            return -1;
         }
 
-        return null;
+        int i = 0;
+        while (name.charAt(i) == '[') {
+            i++;
+        }
+
+        // 'L', then at least one character before the trailing ';'
+        if (i >= length - 2 || name.charAt(i) != 'L' || containsLineTerminator(name, i + 1, length - 1)) {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * Gets the index of the path within a versioned path in a multi-release jar.
+     *
+     * @return the index, or -1 if the region isn't a versioned path
+     */
+    private static int versionedPathStart(String name, int start, int end) {
+        // shortest possible match is "META-INF/versions/9/"
+        if (end - start < VERSIONS_PREFIX.length() + 2 || name.charAt(start) != 'M'
+                || !name.startsWith(VERSIONS_PREFIX, start)) {
+            return -1;
+        }
+
+        int i = start + VERSIONS_PREFIX.length();
+        int digitsStart = i;
+        while (i < end && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+            i++;
+        }
+        if (i == digitsStart || i == end || name.charAt(i) != '/' || containsLineTerminator(name, i + 1, end)) {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    /**
+     * Tests whether the region contains any character which the regex '.' wouldn't match.
+     */
+    private static boolean containsLineTerminator(String name, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char ch = name.charAt(i);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                return true;
+            }
+        }
+        return false;
     }
 }
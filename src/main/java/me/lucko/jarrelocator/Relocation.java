@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * A relocation rule
@@ -30,8 +31,11 @@ public final class Relocation {
     private final String pathPattern;
     private final String relocatedPathPattern;
 
-    private final Set<String> includes;
-    private final Set<String> excludes;
+    private final PathMatcher[] includes;
+    private final PathMatcher[] excludes;
+    /** The include and exclude patterns, sorted, for {@link #fingerprint(Fingerprint)} */
+    private final Set<String> includePatterns;
+    private final Set<String> excludePatterns;
 
     /**
      * Creates a new relocation
@@ -47,19 +51,10 @@ public final class Relocation {
         this.relocatedPattern = relocatedPattern.replace('/', '.');
         this.relocatedPathPattern = relocatedPattern.replace('.', '/');
 
-        if (includes != null && !includes.isEmpty()) {
-            this.includes = normalizePatterns(includes);
-            this.includes.addAll(includes);
-        } else {
-            this.includes = null;
-        }
-
-        if (excludes != null && !excludes.isEmpty()) {
-            this.excludes = normalizePatterns(excludes);
-            this.excludes.addAll(excludes);
-        } else {
-            this.excludes = null;
-        }
+        this.includes = compilePatterns(includes);
+        this.excludes = compilePatterns(excludes);
+        this.includePatterns = includes == null ? Collections.<String>emptySet() : new TreeSet<>(includes);
+        this.excludePatterns = excludes == null ? Collections.<String>emptySet() : new TreeSet<>(excludes);
     }
 
     /**
@@ -72,26 +67,51 @@ public final class Relocation {
         this(pattern, relocatedPattern, Collections.<String>emptyList(), Collections.<String>emptyList());
     }
 
-    private boolean isIncluded(String path) {
+    String getPattern() {
+        return this.pattern;
+    }
+
+    String getPathPattern() {
+        return this.pathPattern;
+    }
+
+    /**
+     * Adds the settings of this rule to a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     */
+    void fingerprint(Fingerprint fingerprint) {
+        fingerprint.add(this.pattern).add(this.relocatedPattern);
+        fingerprint.add(this.includePatterns.size());
+        for (String include : this.includePatterns) {
+            fingerprint.add(include);
+        }
+        fingerprint.add(this.excludePatterns.size());
+        for (String exclude : this.excludePatterns) {
+            fingerprint.add(exclude);
+        }
+    }
+
+    private boolean isIncluded(String path, int length) {
         if (this.includes == null) {
             return true;
         }
 
-        for (String include : this.includes) {
-            if (SelectorUtils.matchPath(include, path, true)) {
+        for (PathMatcher include : this.includes) {
+            if (include.matches(path, length)) {
                 return true;
             }
         }
         return false;
     }
 
-    private boolean isExcluded(String path) {
+    private boolean isExcluded(String path, int length) {
         if (this.excludes == null) {
             return false;
         }
 
-        for (String exclude : this.excludes) {
-            if (SelectorUtils.matchPath(exclude, path, true)) {
+        for (PathMatcher exclude : this.excludes) {
+            if (exclude.matches(path, length)) {
                 return true;
             }
         }
@@ -99,27 +119,88 @@ public final class Relocation {
     }
 
     boolean canRelocatePath(String path) {
-        if (path.endsWith(".class")) {
-            path = path.substring(0, path.length() - 6);
-        }
+        int length = path.endsWith(".class") ? path.length() - 6 : path.length();
 
-        if (!isIncluded(path) || isExcluded(path)) {
+        // check the prefix first: most paths don't match, and never need to reach the matchers
+        if (prefixLength(path, length, this.pathPattern, '/') == -1) {
             return false;
         }
 
-        return path.startsWith(this.pathPattern) || path.startsWith("/" + this.pathPattern);
+        return isIncluded(path, length) && !isExcluded(path, length);
     }
 
     boolean canRelocateClass(String clazz) {
-        return clazz.indexOf('/') == -1 && canRelocatePath(clazz.replace('.', '/'));
+        if (clazz.indexOf('/') != -1) {
+            return false;
+        }
+
+        // equivalent to checking the path form of the class against the path pattern
+        if (prefixLength(clazz, clazz.length(), this.pattern, '.') == -1) {
+            return false;
+        }
+
+        if (this.includes == null && this.excludes == null) {
+            return true;
+        }
+
+        String path = clazz.replace('.', '/');
+        return isIncluded(path, path.length()) && !isExcluded(path, path.length());
     }
 
     String relocatePath(String path) {
-        return path.replaceFirst(this.pathPattern, this.relocatedPathPattern);
+        return relocate(path, this.pathPattern, this.relocatedPathPattern, '/');
     }
 
     String relocateClass(String clazz) {
-        return clazz.replaceFirst(this.pattern, this.relocatedPattern);
+        return relocate(clazz, this.pattern, this.relocatedPattern, '.');
+    }
+
+    /**
+     * Gets the length of the matched prefix if {@code name[0, length)} starts
+     * with the pattern, optionally preceded by a separator.
+     *
+     * @return the number of characters preceding the pattern (0 or 1), or -1
+     *         if the name doesn't start with the pattern
+     */
+    private static int prefixLength(String name, int length, String pattern, char separator) {
+        int patternLength = pattern.length();
+        if (length >= patternLength && name.startsWith(pattern)) {
+            return 0;
+        }
+        if (length > patternLength && name.charAt(0) == separator && name.startsWith(pattern, 1)) {
+            return 1;
+        }
+        return -1;
+    }
+
+    private static String relocate(String name, String pattern, String relocatedPattern, char separator) {
+        int start = prefixLength(name, name.length(), pattern, separator);
+        if (start == -1) {
+            return name;
+        }
+
+        int end = start + pattern.length();
+        return new StringBuilder(name.length() - pattern.length() + relocatedPattern.length())
+                .append(name, 0, start)
+                .append(relocatedPattern)
+                .append(name, end, name.length())
+                .toString();
+    }
+
+    private static PathMatcher[] compilePatterns(Collection<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return null;
+        }
+
+        Set<String> normalized = normalizePatterns(patterns);
+        normalized.addAll(patterns);
+
+        PathMatcher[] matchers = new PathMatcher[normalized.size()];
+        int i = 0;
+        for (String pattern : normalized) {
+            matchers[i++] = SelectorUtils.compile(pattern, true);
+        }
+        return matchers;
     }
 
     private static Set<String> normalizePatterns(Collection<String> patterns) {
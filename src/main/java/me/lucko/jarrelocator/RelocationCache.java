@@ -0,0 +1,321 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory of relocated jars, which saves relocating the same jar with
+ * the same rules more than once.
+ *
+ * <p>Each output jar is stored under a key made from a hash of the contents
+ * of the input jar, and a fingerprint of everything which affects the output:
+ * the relocation rules (patterns, includes and excludes), the class engine
+ * and compression policy, and the version of the relocator. When the same
+ * jar is relocated again, the stored output is hard linked into place (or
+ * copied, if the file system doesn't support links), without reading the
+ * jar any further.</p>
+ *
+ * <p>The cache may be shared by several threads and processes. Jars are
+ * relocated into a temporary file and moved into the cache atomically, and
+ * changes to the directory are made whilst holding a lock on it. Once the
+ * stored jars exceed the maximum size, the least recently used are deleted.</p>
+ *
+ * <p>An output which is hard linked to a stored jar shares its contents, so
+ * should be replaced rather than modified; a {@link RelocationEngine} always
+ * replaces its output jars.</p>
+ *
+ * @see RelocationEngine#withCache(RelocationCache)
+ */
+public final class RelocationCache {
+
+    /**
+     * Changed whenever the output jars can change for the same settings (other
+     * than through the relocated classes, which are versioned by the relocator's
+     * fingerprint), or the way they're stored changes, to invalidate existing
+     * caches
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String ENTRY_SUFFIX = ".jar";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = ".lock";
+
+    /** How long a temporary file is left before it's assumed to be abandoned */
+    private static final long TEMP_FILE_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /** Locks held by this process, keyed by cache directory, since file locks are held per process */
+    private static final ConcurrentHashMap<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    /** The maximum total size of the stored jars, in bytes */
+    private final long maximumSize;
+
+    /**
+     * Creates a new cache, creating its directory if it doesn't exist.
+     *
+     * @param directory the directory holding the cache
+     * @param maximumSize the maximum total size of the jars held, in bytes
+     * @throws IOException if the directory can't be created
+     */
+    public RelocationCache(File directory, long maximumSize) throws IOException {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.directory = Files.createDirectories(directory.toPath()).toAbsolutePath().normalize();
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Gets the directory holding the cache.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return this.directory.toFile();
+    }
+
+    /**
+     * Gets the maximum total size of the jars held by the cache.
+     *
+     * @return the maximum size, in bytes
+     */
+    public long getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * Deletes every jar held by the cache.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    public void clear() throws IOException {
+        withLock(() -> {
+            for (CachedJar jar : listJars()) {
+                deleteJar(jar.path);
+            }
+        });
+    }
+
+    /**
+     * Computes the key of the output of relocating a jar.
+     *
+     * @param input the input jar
+     * @param fingerprint the fingerprint of the settings used to relocate it
+     * @return the key
+     * @throws IOException if an i/o error occurs reading the jar
+     */
+    String key(File input, String fingerprint) throws IOException {
+        MessageDigest digest = Hashing.sha256();
+        digest.update(new Fingerprint()
+                .add(FORMAT_VERSION)
+                .add(fingerprint)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8));
+        Hashing.update(digest, input.toPath());
+        return Hashing.hex(digest.digest());
+    }
+
+    /**
+     * Puts the cached output with the given key into place, if there is one.
+     *
+     * @param key the key
+     * @param output the output jar, which is replaced
+     * @return true if the output was found in the cache
+     * @throws IOException if an i/o error occurs
+     */
+    boolean get(String key, File output) throws IOException {
+        Path jar = this.directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            // mark the jar as used, which also checks that it exists
+            Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis()));
+            linkOrCopy(jar, output.toPath());
+            return true;
+        } catch (NoSuchFileException e) {
+            // not cached, or evicted by another thread just now
+            return false;
+        }
+    }
+
+    /**
+     * Creates a temporary file in the cache directory, for a jar to be
+     * relocated into before it's {@link #put(String, Path, File) put} in the
+     * cache.
+     *
+     * @return the temporary file
+     * @throws IOException if an i/o error occurs
+     */
+    Path createTempFile() throws IOException {
+        return Files.createTempFile(this.directory, "relocating-", TEMP_SUFFIX);
+    }
+
+    /**
+     * Moves a relocated jar into the cache, and puts it into place as the
+     * output jar.
+     *
+     * @param key the key
+     * @param temp the relocated jar, in a {@link #createTempFile() temporary file}
+     * @param output the output jar, which is replaced
+     * @throws IOException if an i/o error occurs
+     */
+    void put(String key, Path temp, File output) throws IOException {
+        Path jar = this.directory.resolve(key + ENTRY_SUFFIX);
+        withLock(() -> {
+            if (Files.exists(jar)) {
+                // relocated at the same time by another thread or process
+                Files.delete(temp);
+            } else {
+                Files.move(temp, jar, StandardCopyOption.ATOMIC_MOVE);
+            }
+            linkOrCopy(jar, output.toPath());
+            evict();
+        });
+    }
+
+    private static void linkOrCopy(Path jar, Path output) throws IOException {
+        Files.deleteIfExists(output);
+        try {
+            Files.createLink(output, jar);
+        } catch (UnsupportedOperationException | IOException e) {
+            if (e instanceof NoSuchFileException && !Files.exists(jar)) {
+                throw (NoSuchFileException) e;
+            }
+            // links aren't supported, or the output is on another file system
+            Files.copy(jar, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes a stored jar. Jars stored by earlier versions were read-only,
+     * which stops them being deleted on some systems, so they're made writable
+     * first.
+     *
+     * @param jar the jar
+     * @throws IOException if an i/o error occurs
+     */
+    private static void deleteJar(Path jar) throws IOException {
+        jar.toFile().setWritable(true);
+        Files.deleteIfExists(jar);
+    }
+
+    /**
+     * Deletes the least recently used jars until the cache fits within its
+     * maximum size, and any abandoned temporary files.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    private void evict() throws IOException {
+        List<CachedJar> jars = listJars();
+        long size = 0;
+        for (CachedJar jar : jars) {
+            size += jar.size;
+        }
+
+        jars.sort(Comparator.comparingLong(jar -> jar.lastUsed));
+        for (int i = 0; size > this.maximumSize && i < jars.size(); i++) {
+            CachedJar jar = jars.get(i);
+            try {
+                deleteJar(jar.path);
+                size -= jar.size;
+            } catch (IOException e) {
+                // still in use, on systems which don't allow open files to be deleted
+            }
+        }
+
+        long expiry = System.currentTimeMillis() - TEMP_FILE_EXPIRY;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + TEMP_SUFFIX)) {
+            for (Path temp : stream) {
+                if (Files.getLastModifiedTime(temp).toMillis() < expiry) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+    }
+
+    private List<CachedJar> listJars() throws IOException {
+        List<CachedJar> jars = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + ENTRY_SUFFIX)) {
+            for (Path path : stream) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    jars.add(new CachedJar(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } catch (NoSuchFileException e) {
+                    // deleted since it was listed
+                }
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * Runs an action whilst holding the lock on the cache directory, which
+     * excludes other threads and other processes.
+     *
+     * @param action the action
+     * @throws IOException if an i/o error occurs
+     */
+    private void withLock(LockedAction action) throws IOException {
+        Object processLock = PROCESS_LOCKS.computeIfAbsent(this.directory, k -> new Object());
+        synchronized (processLock) {
+            try (FileChannel channel = FileChannel.open(this.directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private interface LockedAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * A jar held by the cache.
+     */
+    private static final class CachedJar {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        CachedJar(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,711 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relocates jars with a set of rules, compiled once and reused for every jar.
+ *
+ * <p>Unlike a {@link JarRelocator}, which relocates a single jar, an engine
+ * may relocate any number of jars, and is safe to use from several threads
+ * at once. Everything which doesn't depend on a particular jar is created
+ * with the engine and shared by every jar it relocates: the compiled rules,
+ * the {@link NameCache} (if any), the executor and the pool of deflaters.</p>
+ *
+ * <p>Engines are immutable; the {@code with...} methods return a new engine.</p>
+ */
+public final class RelocationEngine {
+
+    /** The size of the name cache shared by a batch of jars, if the engine doesn't have one */
+    private static final int BATCH_NAME_CACHE_SIZE = 1 << 16;
+
+    /** The suffix given to an output jar's name to name its digest file */
+    private static final String DIGEST_FILE_SUFFIX = ".sha256";
+
+    /** Relocates the classes in each jar */
+    private final ClassRelocator classRelocator;
+    /** The policy deciding how entries in the output jars are compressed */
+    private final CompressionPolicy compressionPolicy;
+    /** The executor used to relocate classes in parallel, or null to relocate them on the calling thread */
+    private final Executor executor;
+    /** The deflaters used to compress entries, shared between jars */
+    private final DeflaterPool deflaters;
+    /** The cache of relocated jars, or null */
+    private final RelocationCache cache;
+    /** The fingerprint of the settings affecting the output, if there's a cache */
+    private final String cacheFingerprint;
+    /** The store of relocated classes, or null */
+    private final EntryStore entryStore;
+    /** If an index of each output jar is kept, to relocate it incrementally when the rules change */
+    private final boolean symbolIndex;
+    /** The fingerprint of the settings, other than the rules, affecting the output, if there's an index */
+    private final String indexFingerprint;
+    /** If an output jar which is identical to the existing file is left untouched, rather than replaced */
+    private final boolean skipIdenticalOutput;
+    /** If the output jars and their entries are hashed as they're written */
+    private final boolean digests;
+    /** If the digests are written to a file alongside each output jar, which implies {@link #digests} */
+    private final boolean digestFile;
+
+    /**
+     * Creates a new engine with the given rules.
+     *
+     * @param relocations the relocations
+     */
+    public RelocationEngine(Collection<Relocation> relocations) {
+        this(new ClassRelocator(relocations), CompressionPolicy.DEFAULT, null, new DeflaterPool(), null, null, false, false, false, false);
+    }
+
+    /**
+     * Creates a new engine with the given rules.
+     *
+     * @param relocations the relocations
+     */
+    public RelocationEngine(Map<String, String> relocations) {
+        this(JarRelocator.toRelocations(relocations));
+    }
+
+    RelocationEngine(ClassRelocator classRelocator, CompressionPolicy compressionPolicy, Executor executor, DeflaterPool deflaters, RelocationCache cache, EntryStore entryStore, boolean symbolIndex, boolean skipIdenticalOutput, boolean digests, boolean digestFile) {
+        if (compressionPolicy == null) {
+            throw new NullPointerException("compressionPolicy");
+        }
+        this.classRelocator = classRelocator;
+        this.compressionPolicy = compressionPolicy;
+        this.executor = executor;
+        this.deflaters = deflaters;
+        this.cache = cache;
+        this.cacheFingerprint = cache == null ? null : fingerprint();
+        this.entryStore = entryStore;
+        this.symbolIndex = symbolIndex;
+        this.indexFingerprint = symbolIndex ? indexFingerprint() : null;
+        this.skipIdenticalOutput = skipIdenticalOutput;
+        this.digests = digests;
+        this.digestFile = digestFile;
+    }
+
+    /**
+     * Returns a copy of this engine which memoizes the results of mapping
+     * names in the given cache.
+     *
+     * @param nameCache the cache, or null to disable caching
+     * @return the new engine
+     * @see ClassRelocator#withNameCache(NameCache)
+     */
+    public RelocationEngine withNameCache(NameCache nameCache) {
+        return new RelocationEngine(this.classRelocator.withNameCache(nameCache), this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which uses the given engine to relocate
+     * classes. Defaults to {@link ClassEngine#ASM}.
+     *
+     * @param classEngine the engine
+     * @return the new engine
+     */
+    public RelocationEngine withClassEngine(ClassEngine classEngine) {
+        return new RelocationEngine(this.classRelocator.withClassEngine(classEngine), this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which does or doesn't expand stack map
+     * frames when relocating classes with the {@link ClassEngine#ASM ASM engine}.
+     * Defaults to true.
+     *
+     * @param expandFrames if frames should be expanded
+     * @return the new engine
+     * @see JarRelocator#setExpandFrames(boolean)
+     */
+    public RelocationEngine withExpandFrames(boolean expandFrames) {
+        return new RelocationEngine(this.classRelocator.withExpandFrames(expandFrames), this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which compresses the entries of output
+     * jars with the given policy. Defaults to {@link CompressionPolicy#DEFAULT}.
+     *
+     * @param compressionPolicy the compression policy
+     * @return the new engine
+     */
+    public RelocationEngine withCompressionPolicy(CompressionPolicy compressionPolicy) {
+        return new RelocationEngine(this.classRelocator, compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which relocates classes in parallel on
+     * the given executor, or on the thread relocating each jar if null.
+     * Defaults to null.
+     *
+     * <p>The executor is shared by every jar relocated by the engine.</p>
+     *
+     * @param executor the executor
+     * @return the new engine
+     * @see JarRelocator#setExecutor(Executor)
+     */
+    public RelocationEngine withExecutor(Executor executor) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which keeps the jar files it relocates in
+     * the given cache, and takes them from the cache rather than relocating
+     * the same jar again. Defaults to null.
+     *
+     * <p>The cache is only used when relocating files, not streams.</p>
+     *
+     * @param cache the cache, or null to disable caching
+     * @return the new engine
+     */
+    public RelocationEngine withCache(RelocationCache cache) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which keeps the classes it relocates in
+     * the given store, and takes them from the store rather than relocating
+     * the same class again. Defaults to null.
+     *
+     * <p>The store may be shared with engines using other rules.</p>
+     *
+     * @param entryStore the store, or null to disable it
+     * @return the new engine
+     */
+    public RelocationEngine withEntryStore(EntryStore entryStore) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, this.cache, entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which keeps an index of the packages
+     * referred to by each class alongside each output jar, in a file named
+     * after the jar with the suffix {@code .index}. Defaults to false.
+     *
+     * <p>When a jar is relocated again from the same input, with the same
+     * settings but different rules, the classes which the changed rules can't
+     * apply to are copied from the existing output, rather than relocated
+     * again. Changes to rules whose patterns have only one segment (such as
+     * {@code "com"}) relocate every class.</p>
+     *
+     * <p>The index is only used when relocating files without a
+     * {@link #withCache(RelocationCache) cache}.</p>
+     *
+     * @param symbolIndex if an index should be kept
+     * @return the new engine
+     */
+    public RelocationEngine withSymbolIndex(boolean symbolIndex) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, symbolIndex, this.skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which leaves an existing output jar
+     * untouched if relocating produces exactly the same bytes, keeping its
+     * modification time and anything derived from it. Defaults to false.
+     *
+     * <p>Each jar is written to a temporary file beside the output, hashed as
+     * it's written, and compared with the existing output. If they differ, the
+     * output is replaced atomically. So that the same input and rules produce
+     * the same bytes, new entries are given the modification time of the input
+     * jar, rather than the current time.</p>
+     *
+     * <p>This only applies when relocating files without a
+     * {@link #withCache(RelocationCache) cache}.</p>
+     *
+     * @param skipIdenticalOutput if identical outputs should be left untouched
+     * @return the new engine
+     * @see RelocationResult#isUnchanged()
+     */
+    public RelocationEngine withSkipIdenticalOutput(boolean skipIdenticalOutput) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, skipIdenticalOutput, this.digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which computes the SHA-256 digests of each
+     * output jar and of each entry in it, as they're written, so the output
+     * doesn't have to be read again to hash it. Defaults to false.
+     *
+     * <p>The digests are returned in the {@link RelocationResult}. Jars taken
+     * from a {@link #withCache(RelocationCache) cache} aren't written, so
+     * have no digests.</p>
+     *
+     * @param digests if digests should be computed
+     * @return the new engine
+     * @see RelocationResult#getDigest()
+     * @see RelocationResult#getEntryDigests()
+     */
+    public RelocationEngine withDigests(boolean digests) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, digests, this.digestFile);
+    }
+
+    /**
+     * Returns a copy of this engine which computes {@link #withDigests(boolean) digests},
+     * and writes them to a file alongside each output jar, named after the jar
+     * with the suffix {@code .sha256}. Defaults to false.
+     *
+     * <p>The first line of the file holds the digest of the jar, in the
+     * format of {@code sha256sum}. Each following line holds the digest of an
+     * entry, named {@code <jar>!/<entry>}.</p>
+     *
+     * @param digestFile if a digest file should be written
+     * @return the new engine
+     */
+    public RelocationEngine withDigestFile(boolean digestFile) {
+        return new RelocationEngine(this.classRelocator, this.compressionPolicy, this.executor, this.deflaters, this.cache, this.entryStore, this.symbolIndex, this.skipIdenticalOutput, this.digests, digestFile);
+    }
+
+    /**
+     * Gets the relocator used to relocate classes, which may be used to
+     * relocate classes held in memory with the same compiled rules.
+     *
+     * @return the class relocator
+     */
+    public ClassRelocator getClassRelocator() {
+        return this.classRelocator;
+    }
+
+    /**
+     * Relocates a jar file.
+     *
+     * @param input the input jar file
+     * @param output the output jar file
+     * @return the result
+     * @throws IOException if an exception is encountered whilst performing i/o
+     *                     with the input or output file
+     */
+    public RelocationResult relocate(File input, File output) throws IOException {
+        return relocate(input, output, new AtomicBoolean(false));
+    }
+
+    private RelocationResult relocate(File input, File output, AtomicBoolean cancelled) throws IOException {
+        RelocationResult result = relocateFile(input, output, cancelled);
+        if (this.digestFile) {
+            writeDigestFile(result);
+        }
+        return result;
+    }
+
+    private RelocationResult relocateFile(File input, File output, AtomicBoolean cancelled) throws IOException {
+        if (this.cache == null) {
+            if (this.symbolIndex || this.skipIdenticalOutput) {
+                return relocateReplacing(input, output, cancelled);
+            }
+            return relocateUncached(input, output, cancelled);
+        }
+
+        long start = System.nanoTime();
+        String key = this.cache.key(input, this.cacheFingerprint);
+        if (this.cache.get(key, output)) {
+            int entryCount;
+            try (ZipReader out = new ZipReader(output)) {
+                entryCount = out.getEntryCount();
+            }
+            return new RelocationResult(input, output, entryCount, output.length(), true, false, null, null, Duration.ofNanos(System.nanoTime() - start));
+        }
+
+        Path temp = this.cache.createTempFile();
+        try {
+            RelocationResult result = relocateUncached(input, temp.toFile(), cancelled);
+            this.cache.put(key, temp, output);
+            return new RelocationResult(input, output, result.getEntryCount(), result.getOutputSize(), false, false, result.getDigest(), result.getEntryDigests(), Duration.ofNanos(System.nanoTime() - start));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private RelocationResult relocateUncached(File input, File output, AtomicBoolean cancelled) throws IOException {
+        long start = System.nanoTime();
+        // Replace the output, rather than overwrite it, in case it's linked to a jar in a cache.
+        Files.deleteIfExists(output.toPath());
+        FileChannel outChannel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        MessageDigest digest = isDigesting() ? Hashing.sha256() : null;
+        try (ZipWriter out = newWriter(outChannel, digest, System.currentTimeMillis())) {
+            try (ZipReader in = new ZipReader(input)) {
+                newTask(out, in, cancelled).processEntries();
+            }
+            out.finish();
+            String outputHash = digest == null ? null : Hashing.hex(digest.digest());
+            return new RelocationResult(input, output, out.getEntryCount(), out.getSize(), false, false, outputHash, out.getEntryDigests(), Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Relocates a jar into a temporary file beside the output, and then moves
+     * it into place, unless the output is identical and so is left untouched.
+     */
+    private RelocationResult relocateReplacing(File input, File output, AtomicBoolean cancelled) throws IOException {
+        long start = System.nanoTime();
+        Path outputPath = output.toPath();
+        Collection<Relocation> rules = this.classRelocator.getRelocations();
+        String inputHash = this.symbolIndex ? Hashing.sha256(input.toPath()) : null;
+        // An output which is rewritten with the current time is never identical to the last.
+        long time = this.skipIdenticalOutput ? Files.getLastModifiedTime(input.toPath()).toMillis() : System.currentTimeMillis();
+
+        Path temp = TempFiles.createFor(outputPath);
+        try {
+            IncrementalState state = this.symbolIndex ? IncrementalState.open(outputPath, inputHash, this.indexFingerprint, rules) : null;
+            MessageDigest digest = Hashing.sha256();
+            int entryCount;
+            long size;
+            Map<String, String> entryDigests;
+            FileChannel outChannel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try (ZipWriter out = newWriter(outChannel, digest, time)) {
+                try (ZipReader in = new ZipReader(input)) {
+                    newTask(out, in, cancelled, state).processEntries();
+                }
+                out.finish();
+                entryCount = out.getEntryCount();
+                size = out.getSize();
+                entryDigests = out.getEntryDigests();
+            } finally {
+                // release the existing output before it's replaced
+                if (state != null) {
+                    state.close();
+                }
+            }
+
+            String outputHash = Hashing.hex(digest.digest());
+            boolean unchanged = this.skipIdenticalOutput && Files.isRegularFile(outputPath)
+                    && Files.size(outputPath) == size && Hashing.sha256(outputPath).equals(outputHash);
+            if (!unchanged) {
+                Files.move(temp, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (state != null) {
+                state.toIndex(inputHash, outputHash, this.indexFingerprint, rules).write(SymbolIndex.pathFor(outputPath));
+            }
+            return new RelocationResult(input, output, entryCount, size, false, unchanged, isDigesting() ? outputHash : null, entryDigests, Duration.ofNanos(System.nanoTime() - start));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Relocates a jar file without blocking the calling thread.
+     *
+     * <p>The jar is read and written on the engine's {@link #withExecutor(Executor) executor},
+     * or on the {@link ForkJoinPool#commonPool() common pool} if it has none.</p>
+     *
+     * @param input the input jar file
+     * @param output the output jar file
+     * @return a future completed with the result
+     * @see #relocateAsync(File, File, Executor)
+     */
+    public CompletableFuture<RelocationResult> relocateAsync(File input, File output) {
+        return relocateAsync(input, output, this.executor != null ? this.executor : ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Relocates a jar file without blocking the calling thread.
+     *
+     * <p>The jar is read and written by a task on the given i/o executor,
+     * whilst its classes are relocated and compressed on the engine's
+     * {@link #withExecutor(Executor) executor}, or by the same task if the
+     * engine has none. The two executors may be the same.</p>
+     *
+     * <p>Cancelling the returned future stops the relocation before its next
+     * entry, and deletes the partial output jar. If the relocation fails, the
+     * partial output jar is also deleted, and the future is completed
+     * exceptionally. When the output is replaced atomically (with a
+     * {@link #withCache(RelocationCache) cache}, {@link #withSymbolIndex(boolean) index}
+     * or {@link #withSkipIdenticalOutput(boolean) skipping identical output}),
+     * only the temporary file is deleted, and the existing output is kept.</p>
+     *
+     * @param input the input jar file
+     * @param output the output jar file
+     * @param ioExecutor the executor used to read and write the jars
+     * @return a future completed with the result
+     */
+    public CompletableFuture<RelocationResult> relocateAsync(File input, File output, Executor ioExecutor) {
+        if (ioExecutor == null) {
+            throw new NullPointerException("ioExecutor");
+        }
+
+        CompletableFuture<RelocationResult> future = new CompletableFuture<>();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) {
+                cancelled.set(true);
+            }
+        });
+
+        try {
+            ioExecutor.execute(() -> {
+                if (cancelled.get()) {
+                    return;
+                }
+                try {
+                    RelocationResult result = relocateOrDelete(input, output, cancelled);
+                    if (!future.complete(result) && writesOutputDirectly()) {
+                        // cancelled just as the relocation finished
+                        Files.deleteIfExists(output.toPath());
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Relocates a jar read from a stream, writing the output to a stream.
+     *
+     * <p>Neither stream is closed.</p>
+     *
+     * @param input the input jar stream
+     * @param output the output jar stream
+     * @return the result
+     * @throws IOException if an exception is encountered whilst performing i/o
+     *                     with the input or output stream
+     * @see JarRelocator#JarRelocator(InputStream, OutputStream, Collection)
+     */
+    public RelocationResult relocate(InputStream input, OutputStream output) throws IOException {
+        long start = System.nanoTime();
+        MessageDigest digest = isDigesting() ? Hashing.sha256() : null;
+        ZipWriter out = newWriter(Channels.newChannel(output), digest, System.currentTimeMillis());
+        try (ZipStreamReader in = new ZipStreamReader(input)) {
+            newTask(out, in, new AtomicBoolean(false)).processEntries();
+        }
+        out.finish();
+        output.flush();
+        String outputHash = digest == null ? null : Hashing.hex(digest.digest());
+        return new RelocationResult(null, null, out.getEntryCount(), out.getSize(), false, false, outputHash, out.getEntryDigests(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Relocates a batch of jar files, using {@link Runtime#availableProcessors()}
+     * threads.
+     *
+     * @param jars the jars to relocate, mapping each input jar to its output jar
+     * @return a report of the result of each jar
+     * @see #relocateAll(Map, int)
+     */
+    public BatchReport relocateAll(Map<File, File> jars) {
+        return relocateAll(jars, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Relocates a batch of jar files.
+     *
+     * <p>The jars are relocated in parallel, on up to {@code parallelism}
+     * threads created for the batch, starting with the largest jars so that
+     * the work stays evenly spread until the end. The classes within each jar
+     * are still relocated on the engine's {@link #withExecutor(Executor) executor},
+     * if it has one. If the engine has no {@link NameCache}, one is created and
+     * shared by the whole batch.</p>
+     *
+     * <p>A jar which fails doesn't stop the others: its exception is recorded
+     * in the report, and its partial output is deleted (the existing output is
+     * kept, if it's replaced atomically).</p>
+     *
+     * @param jars the jars to relocate, mapping each input jar to its output jar
+     * @param parallelism the maximum number of jars to relocate at once
+     * @return a report of the result of each jar
+     */
+    public BatchReport relocateAll(Map<File, File> jars, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        Set<File> outputs = new HashSet<>();
+        for (File output : jars.values()) {
+            if (!outputs.add(output)) {
+                throw new IllegalArgumentException("duplicate output: " + output);
+            }
+        }
+
+        long start = System.nanoTime();
+        RelocationEngine engine = this.classRelocator.getNameCache() != null ? this : withNameCache(new NameCache(BATCH_NAME_CACHE_SIZE));
+
+        // Start the largest jars first (roughly, the ones which take longest), so
+        // that one doesn't end up running alone after the rest have finished.
+        List<File> inputs = new ArrayList<>(jars.keySet());
+        List<File> largestFirst = new ArrayList<>(inputs);
+        largestFirst.sort(Comparator.comparingLong(File::length).reversed());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(inputs.size(), 1)), r -> {
+            Thread thread = new Thread(r, "jar-relocator-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<File, Future<RelocationResult>> tasks = new HashMap<>();
+            for (File input : largestFirst) {
+                File output = jars.get(input);
+                tasks.put(input, threads.submit(() -> engine.relocateOrDelete(input, output, new AtomicBoolean(false))));
+            }
+
+            List<RelocationResult> results = new ArrayList<>();
+            Map<File, Exception> failures = new LinkedHashMap<>();
+            for (File input : inputs) {
+                try {
+                    results.add(tasks.get(input).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        failures.put(input, (Exception) cause);
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+            return new BatchReport(results, failures, Duration.ofNanos(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted whilst relocating jars", e);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Relocates a jar file, deleting the output if the relocation fails part
+     * way through writing it. An output which is replaced atomically is only
+     * touched once it's complete, so is kept.
+     */
+    private RelocationResult relocateOrDelete(File input, File output, AtomicBoolean cancelled) throws IOException {
+        try {
+            return relocate(input, output, cancelled);
+        } catch (IOException | RuntimeException e) {
+            if (!writesOutputDirectly()) {
+                throw e;
+            }
+            try {
+                Files.deleteIfExists(output.toPath());
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets whether output jars are written in place, rather than written to
+     * a temporary file (or taken from a cache) and moved into place.
+     */
+    private boolean writesOutputDirectly() {
+        return this.cache == null && !this.symbolIndex && !this.skipIdenticalOutput;
+    }
+
+    private boolean isDigesting() {
+        return this.digests || this.digestFile;
+    }
+
+    /**
+     * Creates a writer, which adds everything it writes to the given digest,
+     * and hashes each entry too if digests are enabled.
+     */
+    private ZipWriter newWriter(WritableByteChannel channel, MessageDigest digest, long time) {
+        ZipWriter out = new ZipWriter(digest == null ? channel : new DigestingChannel(channel, digest), time, this.compressionPolicy, this.deflaters);
+        if (isDigesting()) {
+            out.enableEntryDigests();
+        }
+        return out;
+    }
+
+    /**
+     * Writes the digests of an output jar to a file alongside it, or deletes
+     * the file if the jar has no digests, so that it can't be left out of date.
+     */
+    private static void writeDigestFile(RelocationResult result) throws IOException {
+        Path path = result.getOutput().toPath().resolveSibling(result.getOutput().getName() + DIGEST_FILE_SUFFIX);
+        if (result.getDigest() == null) {
+            Files.deleteIfExists(path);
+            return;
+        }
+
+        String name = result.getOutput().getName();
+        Path temp = TempFiles.createFor(path);
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(result.getDigest() + "  " + name + "\n");
+                for (Map.Entry<String, String> entry : result.getEntryDigests().entrySet()) {
+                    writer.write(entry.getValue() + "  " + name + "!/" + entry.getKey() + "\n");
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private JarRelocatorTask newTask(ZipWriter out, ZipSource in, AtomicBoolean cancelled) {
+        return newTask(out, in, cancelled, null);
+    }
+
+    private JarRelocatorTask newTask(ZipWriter out, ZipSource in, AtomicBoolean cancelled, IncrementalState incremental) {
+        List<ResourceTransformer> transformers = Collections.singletonList(new ServicesResourceTransformer());
+        return new JarRelocatorTask(this.classRelocator, this.executor, out, in, transformers, cancelled, this.entryStore, incremental);
+    }
+
+    private String fingerprint() {
+        Fingerprint fingerprint = new Fingerprint();
+        this.classRelocator.fingerprint(fingerprint);
+        this.compressionPolicy.fingerprint(fingerprint);
+        return fingerprint.toString();
+    }
+
+    private String indexFingerprint() {
+        Fingerprint fingerprint = new Fingerprint();
+        this.classRelocator.fingerprintSettings(fingerprint);
+        this.compressionPolicy.fingerprint(fingerprint);
+        return fingerprint.toString();
+    }
+
+    /**
+     * Ends the deflaters held by the engine, releasing their native memory
+     * without waiting for the engine to be garbage collected.
+     */
+    void releaseDeflaters() {
+        this.deflaters.clear();
+    }
+}
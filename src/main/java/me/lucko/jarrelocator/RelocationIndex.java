@@ -0,0 +1,172 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An index of {@link Relocation} rules, compiled into a prefix trie keyed on
+ * the characters of each rule's path pattern.
+ *
+ * <p>A name is resolved by a single walk over its characters, which yields the
+ * (ascending) indices of every rule whose pattern is a prefix of the name. Only
+ * those candidates are then checked against their includes and excludes, in
+ * their original order, so the first matching rule still wins.</p>
+ */
+final class RelocationIndex {
+    private static final int[] NO_RULES = new int[0];
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final Relocation[] rules;
+    private final Node root = new Node();
+
+    RelocationIndex(Collection<Relocation> rules) {
+        this.rules = rules.toArray(new Relocation[0]);
+        for (int i = 0; i < this.rules.length; i++) {
+            this.root.insert(this.rules[i].getPathPattern(), i);
+        }
+        this.root.accumulate(NO_RULES);
+    }
+
+    /**
+     * Relocates the given name using the first applicable rule.
+     *
+     * @param name the name to relocate
+     * @param isStringValue if the name is a string constant, and may therefore
+     *                      also be a class name in dotted form
+     * @return the relocated name, or null if no rule applies
+     */
+    String relocate(String name, boolean isStringValue) {
+        if (this.rules.length == 0 || name.isEmpty()) {
+            return null;
+        }
+
+        // candidates for Relocation#canRelocatePath
+        int pathLength = name.endsWith(".class") ? name.length() - 6 : name.length();
+        int[] path = walk(name, 0, pathLength, false);
+        int[] slashedPath = name.charAt(0) == '/' ? walk(name, 1, pathLength, false) : NO_RULES;
+
+        // candidates for Relocation#canRelocateClass
+        int[] clazz = NO_RULES;
+        int[] dottedClazz = NO_RULES;
+        if (isStringValue && name.indexOf('/') == -1) {
+            clazz = walk(name, 0, name.length(), true);
+            if (name.charAt(0) == '.') {
+                dottedClazz = walk(name, 1, name.length(), true);
+            }
+        }
+
+        int p = 0, sp = 0, c = 0, dc = 0;
+        while (true) {
+            int next = Math.min(Math.min(head(path, p), head(slashedPath, sp)), Math.min(head(clazz, c), head(dottedClazz, dc)));
+            if (next == NONE) {
+                return null;
+            }
+
+            boolean pathCandidate = false;
+            boolean classCandidate = false;
+            if (head(path, p) == next) { p++; pathCandidate = true; }
+            if (head(slashedPath, sp) == next) { sp++; pathCandidate = true; }
+            if (head(clazz, c) == next) { c++; classCandidate = true; }
+            if (head(dottedClazz, dc) == next) { dc++; classCandidate = true; }
+
+            Relocation rule = this.rules[next];
+            if (classCandidate && rule.canRelocateClass(name)) {
+                return rule.relocateClass(name);
+            } else if (pathCandidate && rule.canRelocatePath(name)) {
+                return rule.relocatePath(name);
+            }
+        }
+    }
+
+    /**
+     * Walks the trie along {@code name[start, end)}, returning the rules whose
+     * path pattern is a prefix of that range.
+     */
+    private int[] walk(String name, int start, int end, boolean dotted) {
+        Node node = this.root;
+        for (int i = start; i < end; i++) {
+            char ch = name.charAt(i);
+            if (dotted && ch == '.') {
+                ch = '/';
+            }
+            Node child = node.child(ch);
+            if (child == null) {
+                break;
+            }
+            node = child;
+        }
+        return node.rules;
+    }
+
+    private static int head(int[] array, int index) {
+        return index < array.length ? array[index] : NONE;
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+
+        /** The rules ending at this node */
+        private int[] terminal = NO_RULES;
+        /** The rules ending at this node or any of its ancestors, in ascending order */
+        private int[] rules = NO_RULES;
+
+        Node child(char ch) {
+            char[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == ch) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        void insert(String pattern, int rule) {
+            Node node = this;
+            for (int i = 0; i < pattern.length(); i++) {
+                char ch = pattern.charAt(i);
+                Node child = node.child(ch);
+                if (child == null) {
+                    child = new Node();
+                    node.keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+                    node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                    node.keys[node.keys.length - 1] = ch;
+                    node.children[node.children.length - 1] = child;
+                }
+                node = child;
+            }
+            node.terminal = Arrays.copyOf(node.terminal, node.terminal.length + 1);
+            node.terminal[node.terminal.length - 1] = rule;
+        }
+
+        void accumulate(int[] inherited) {
+            if (this.terminal.length == 0) {
+                this.rules = inherited;
+            } else {
+                int[] merged = Arrays.copyOf(inherited, inherited.length + this.terminal.length);
+                System.arraycopy(this.terminal, 0, merged, inherited.length, this.terminal.length);
+                Arrays.sort(merged);
+                this.rules = merged;
+            }
+            for (Node child : this.children) {
+                child.accumulate(this.rules);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The result of relocating a jar.
+ */
+public final class RelocationResult {
+
+    /** The input jar, or null if it was read from a stream */
+    private final File input;
+    /** The output jar, or null if it was written to a stream */
+    private final File output;
+    /** The number of entries written to the output jar */
+    private final int entryCount;
+    /** The size of the output jar, in bytes */
+    private final long outputSize;
+    /** If the output was taken from a {@link RelocationCache} */
+    private final boolean cached;
+    /** If the existing output jar was identical, and so was left in place */
+    private final boolean unchanged;
+    /** The SHA-256 digest of the output jar, in hex, or null */
+    private final String digest;
+    /** The SHA-256 digests of the data of each entry in the output jar, or null */
+    private final Map<String, String> entryDigests;
+    private final Duration duration;
+
+    RelocationResult(File input, File output, int entryCount, long outputSize, boolean cached, boolean unchanged, String digest, Map<String, String> entryDigests, Duration duration) {
+        this.input = input;
+        this.output = output;
+        this.entryCount = entryCount;
+        this.outputSize = outputSize;
+        this.cached = cached;
+        this.unchanged = unchanged;
+        this.digest = digest;
+        this.entryDigests = entryDigests == null ? null : Collections.unmodifiableMap(entryDigests);
+        this.duration = duration;
+    }
+
+    /**
+     * Gets the input jar.
+     *
+     * @return the input jar, or null if it was read from a stream
+     */
+    public File getInput() {
+        return this.input;
+    }
+
+    /**
+     * Gets the output jar.
+     *
+     * @return the output jar, or null if it was written to a stream
+     */
+    public File getOutput() {
+        return this.output;
+    }
+
+    /**
+     * Gets the number of entries (including directories) written to the
+     * output jar.
+     *
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return this.entryCount;
+    }
+
+    /**
+     * Gets the size of the output jar.
+     *
+     * @return the size, in bytes
+     */
+    public long getOutputSize() {
+        return this.outputSize;
+    }
+
+    /**
+     * Gets if the output jar was taken from a {@link RelocationCache}, rather
+     * than relocated.
+     *
+     * @return true if the output was cached
+     */
+    public boolean isCached() {
+        return this.cached;
+    }
+
+    /**
+     * Gets if the output jar already existed with identical contents, and so
+     * was left untouched rather than replaced.
+     *
+     * @return true if the output was unchanged
+     * @see RelocationEngine#withSkipIdenticalOutput(boolean)
+     */
+    public boolean isUnchanged() {
+        return this.unchanged;
+    }
+
+    /**
+     * Gets the SHA-256 digest of the output jar, computed as it was written.
+     *
+     * @return the digest in hex, or null if digests weren't enabled, or the
+     *         output was taken from a {@link RelocationCache}
+     * @see RelocationEngine#withDigests(boolean)
+     */
+    public String getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Gets the SHA-256 digests of the entries in the output jar, computed as
+     * they were written. Each digest is of the entry's data as it is stored
+     * in the jar, so after compression; directories aren't included.
+     *
+     * @return the digests in hex, keyed by entry name, in the order the
+     *         entries were written, or null if digests weren't enabled, or the
+     *         output was taken from a {@link RelocationCache}
+     * @see RelocationEngine#withDigests(boolean)
+     */
+    public Map<String, String> getEntryDigests() {
+        return this.entryDigests;
+    }
+
+    /**
+     * Gets the time taken to relocate the jar.
+     *
+     * @return the time taken
+     */
+    public Duration getDuration() {
+        return this.duration;
+    }
+}
@@ -19,7 +19,6 @@ package me.lucko.jarrelocator;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
-import java.util.jar.JarOutputStream;
 
 interface ResourceTransformer {
 
@@ -27,6 +26,6 @@ interface ResourceTransformer {
 
     void processResource(String resource, InputStream inputStream, Collection<Relocation> rules) throws IOException;
 
-    void writeOutput(JarOutputStream jarOutputStream) throws IOException;
+    void writeOutput(ZipWriter zipWriter) throws IOException;
 
 }
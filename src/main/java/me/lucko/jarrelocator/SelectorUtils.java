@@ -58,11 +58,16 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.regex.Pattern;
 
 /**
  * This is a stripped down version of org.codehaus.plexus.util.SelectorUtils for
  * use in {@link Relocation}.
  *
+ * <p>Patterns are compiled once into a {@link PathMatcher}, which can then be
+ * evaluated against candidate paths without re-parsing the pattern or
+ * tokenizing the path.</p>
+ *
  * @author Arnout J. Kuiper <a href="mailto:ajkuiper@wxs.nl">ajkuiper@wxs.nl</a>
  * @author Magesh Umasankar
  * @author <a href="mailto:bruce@callenish.com">Bruce Atherton</a>
@@ -78,25 +83,23 @@ final class SelectorUtils {
                 && pattern.startsWith(ANT_HANDLER_PREFIX) && pattern.endsWith(PATTERN_HANDLER_SUFFIX);
     }
 
-    // When str starts with a File.separator, pattern has to start with a File.separator.
-    // When pattern starts with a File.separator, str has to start with a File.separator.
-    private static boolean separatorPatternStartSlashMismatch(String pattern, String str, String separator) {
-        return str.startsWith(separator) != pattern.startsWith(separator);
+    public static boolean matchPath(String pattern, String str, boolean isCaseSensitive) {
+        return compile(pattern, isCaseSensitive).matches(str);
     }
 
-    public static boolean matchPath(String pattern, String str, boolean isCaseSensitive) {
-        return matchPath(pattern, str, File.separator, isCaseSensitive);
+    public static PathMatcher compile(String pattern, boolean isCaseSensitive) {
+        return compile(pattern, File.separatorChar, isCaseSensitive);
     }
 
-    private static boolean matchPath(String pattern, String str, String separator, boolean isCaseSensitive) {
+    static PathMatcher compile(String pattern, char separator, boolean isCaseSensitive) {
         if (isRegexPrefixedPattern(pattern)) {
             pattern = pattern.substring(REGEX_HANDLER_PREFIX.length(), pattern.length() - PATTERN_HANDLER_SUFFIX.length());
-            return str.matches(pattern);
+            return new RegexPathMatcher(Pattern.compile(pattern));
         } else {
             if (isAntPrefixedPattern(pattern)) {
                 pattern = pattern.substring(ANT_HANDLER_PREFIX.length(), pattern.length() - PATTERN_HANDLER_SUFFIX.length());
             }
-            return matchAntPathPattern(pattern, str, separator, isCaseSensitive);
+            return new AntPathMatcher(pattern, separator, isCaseSensitive);
         }
     }
 
@@ -105,131 +108,113 @@ final class SelectorUtils {
                 && pattern.startsWith(REGEX_HANDLER_PREFIX) && pattern.endsWith(PATTERN_HANDLER_SUFFIX);
     }
 
-    private static boolean matchAntPathPattern(String pattern, String str, String separator, boolean isCaseSensitive) {
-        if (separatorPatternStartSlashMismatch(pattern, str, separator)) {
-            return false;
+    private static final class RegexPathMatcher implements PathMatcher {
+        private final Pattern pattern;
+
+        RegexPathMatcher(Pattern pattern) {
+            this.pattern = pattern;
         }
-        String[] patDirs = tokenizePathToString(pattern, separator);
-        String[] strDirs = tokenizePathToString(str, separator);
-        return matchAntPathPattern(patDirs, strDirs, isCaseSensitive);
 
+        @Override
+        public boolean matches(String path, int length) {
+            return this.pattern.matcher(path).region(0, length).matches();
+        }
     }
 
-    private static boolean matchAntPathPattern(String[] patDirs, String[] strDirs, boolean isCaseSensitive) {
-        int patIdxStart = 0;
-        int patIdxEnd = patDirs.length - 1;
-        int strIdxStart = 0;
-        int strIdxEnd = strDirs.length - 1;
-
-        // up to first '**'
-        while (patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd) {
-            String patDir = patDirs[patIdxStart];
-            if (patDir.equals("**")) {
-                break;
-            }
-            if (!match(patDir, strDirs[strIdxStart], isCaseSensitive)) {
-                return false;
-            }
-            patIdxStart++;
-            strIdxStart++;
-        }
-        if (strIdxStart > strIdxEnd) {
-            // String is exhausted
-            for (int i = patIdxStart; i <= patIdxEnd; i++) {
-                if (!patDirs[i].equals("**")) {
-                    return false;
-                }
-            }
-            return true;
-        } else {
-            if (patIdxStart > patIdxEnd) {
-                // String not exhausted, but pattern is. Failure.
-                return false;
+    private static final class AntPathMatcher implements PathMatcher {
+        private final char separator;
+        private final boolean isCaseSensitive;
+        private final boolean startsWithSeparator;
+
+        /** The pattern's path segments, or null for '**' segments */
+        private final char[][] segments;
+
+        AntPathMatcher(String pattern, char separator, boolean isCaseSensitive) {
+            this.separator = separator;
+            this.isCaseSensitive = isCaseSensitive;
+            this.startsWithSeparator = !pattern.isEmpty() && pattern.charAt(0) == separator;
+
+            List<char[]> segments = new ArrayList<>();
+            StringTokenizer st = new StringTokenizer(pattern, String.valueOf(separator));
+            while (st.hasMoreTokens()) {
+                String token = st.nextToken();
+                segments.add(token.equals("**") ? null : token.toCharArray());
             }
+            this.segments = segments.toArray(new char[0][]);
         }
 
-        // up to last '**'
-        while (patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd) {
-            String patDir = patDirs[patIdxEnd];
-            if (patDir.equals("**")) {
-                break;
-            }
-            if (!match(patDir, strDirs[strIdxEnd], isCaseSensitive)) {
+        @Override
+        public boolean matches(String str, int strEnd) {
+            // When str starts with a File.separator, pattern has to start with a File.separator.
+            // When pattern starts with a File.separator, str has to start with a File.separator.
+            if ((strEnd != 0 && str.charAt(0) == this.separator) != this.startsWithSeparator) {
                 return false;
             }
-            patIdxEnd--;
-            strIdxEnd--;
-        }
-        if (strIdxStart > strIdxEnd) {
-            // String is exhausted
-            for (int i = patIdxStart; i <= patIdxEnd; i++) {
-                if (!patDirs[i].equals("**")) {
-                    return false;
-                }
-            }
-            return true;
-        }
 
-        while (patIdxStart != patIdxEnd && strIdxStart <= strIdxEnd) {
-            int patIdxTmp = -1;
-            for (int i = patIdxStart + 1; i <= patIdxEnd; i++) {
-                if (patDirs[i].equals("**")) {
-                    patIdxTmp = i;
-                    break;
-                }
-            }
-            if (patIdxTmp == patIdxStart + 1) {
-                // '**/**' situation, so skip one
-                patIdxStart++;
-                continue;
-            }
-            // Find the pattern between padIdxStart & padIdxTmp in str between
-            // strIdxStart & strIdxEnd
-            int patLength = (patIdxTmp - patIdxStart - 1);
-            int strLength = (strIdxEnd - strIdxStart + 1);
-            int foundIdx = -1;
-            strLoop:
-            for (int i = 0; i <= strLength - patLength; i++) {
-                for (int j = 0; j < patLength; j++) {
-                    String subPat = patDirs[patIdxStart + j + 1];
-                    String subStr = strDirs[strIdxStart + i + j];
-                    if (!match(subPat, subStr, isCaseSensitive)) {
-                        continue strLoop;
+            char[][] patDirs = this.segments;
+            int patIdx = 0;
+            int strIdx = 0;
+
+            // the position to resume from if the current attempt fails: the
+            // last '**' seen, and the start of the segments it has consumed
+            int starPatIdx = -1;
+            int starStrIdx = -1;
+
+            while (true) {
+                strIdx = skipSeparators(str, strIdx, strEnd);
+                if (strIdx == strEnd) {
+                    // String is exhausted
+                    for (int i = patIdx; i < patDirs.length; i++) {
+                        if (patDirs[i] != null) {
+                            return false;
+                        }
                     }
+                    return true;
                 }
 
-                foundIdx = strIdxStart + i;
-                break;
+                int segmentEnd = segmentEnd(str, strIdx, strEnd);
+                if (patIdx < patDirs.length && patDirs[patIdx] == null) {
+                    // '**' initially matches no segments
+                    starPatIdx = patIdx++;
+                    starStrIdx = strIdx;
+                } else if (patIdx < patDirs.length && match(patDirs[patIdx], str, strIdx, segmentEnd, this.isCaseSensitive)) {
+                    patIdx++;
+                    strIdx = segmentEnd;
+                } else if (starPatIdx != -1) {
+                    // let the last '**' consume one more segment and retry
+                    patIdx = starPatIdx + 1;
+                    starStrIdx = segmentEnd(str, skipSeparators(str, starStrIdx, strEnd), strEnd);
+                    strIdx = starStrIdx;
+                } else {
+                    return false;
+                }
             }
+        }
 
-            if (foundIdx == -1) {
-                return false;
+        private int skipSeparators(String str, int index, int end) {
+            while (index < end && str.charAt(index) == this.separator) {
+                index++;
             }
-
-            patIdxStart = patIdxTmp;
-            strIdxStart = foundIdx + patLength;
+            return index;
         }
 
-        for (int i = patIdxStart; i <= patIdxEnd; i++) {
-            if (!patDirs[i].equals("**")) {
-                return false;
+        private int segmentEnd(String str, int index, int end) {
+            while (index < end && str.charAt(index) != this.separator) {
+                index++;
             }
+            return index;
         }
-
-        return true;
     }
 
-    private static boolean match(String pattern, String str, boolean isCaseSensitive) {
-        char[] patArr = pattern.toCharArray();
-        char[] strArr = str.toCharArray();
-        return match(patArr, strArr, isCaseSensitive);
-    }
-
-    private static boolean match(char[] patArr, char[] strArr, boolean isCaseSensitive) {
+    /**
+     * Tests whether the region {@code str[start, end)} matches the pattern,
+     * which may contain '*' and '?' wildcards.
+     */
+    private static boolean match(char[] patArr, String str, int start, int end, boolean isCaseSensitive) {
         int patIdxStart = 0;
         int patIdxEnd = patArr.length - 1;
-        int strIdxStart = 0;
-        int strIdxEnd = strArr.length - 1;
+        int strIdxStart = start;
+        int strIdxEnd = end - 1;
         char ch;
 
         boolean containsStar = false;
@@ -242,12 +227,12 @@ final class SelectorUtils {
 
         if (!containsStar) {
             // No '*'s, so we make a shortcut
-            if (patIdxEnd != strIdxEnd) {
+            if (patIdxEnd != strIdxEnd - strIdxStart) {
                 return false; // Pattern and string do not have the same size
             }
             for (int i = 0; i <= patIdxEnd; i++) {
                 ch = patArr[i];
-                if (ch != '?' && !equals(ch, strArr[i], isCaseSensitive)) {
+                if (ch != '?' && !equals(ch, str.charAt(strIdxStart + i), isCaseSensitive)) {
                     return false; // Character mismatch
                 }
             }
@@ -260,7 +245,7 @@ final class SelectorUtils {
 
         // Process characters before first star
         while ((ch = patArr[patIdxStart]) != '*' && strIdxStart <= strIdxEnd) {
-            if (ch != '?' && !equals(ch, strArr[strIdxStart], isCaseSensitive)) {
+            if (ch != '?' && !equals(ch, str.charAt(strIdxStart), isCaseSensitive)) {
                 return false; // Character mismatch
             }
             patIdxStart++;
@@ -279,7 +264,7 @@ final class SelectorUtils {
 
         // Process characters after last star
         while ((ch = patArr[patIdxEnd]) != '*' && strIdxStart <= strIdxEnd) {
-            if (ch != '?' && !equals(ch, strArr[strIdxEnd], isCaseSensitive)) {
+            if (ch != '?' && !equals(ch, str.charAt(strIdxEnd), isCaseSensitive)) {
                 return false; // Character mismatch
             }
             patIdxEnd--;
@@ -320,7 +305,7 @@ final class SelectorUtils {
             for (int i = 0; i <= strLength - patLength; i++) {
                 for (int j = 0; j < patLength; j++) {
                     ch = patArr[patIdxStart + j + 1];
-                    if (ch != '?' && !equals(ch, strArr[strIdxStart + i + j], isCaseSensitive)) {
+                    if (ch != '?' && !equals(ch, str.charAt(strIdxStart + i + j), isCaseSensitive)) {
                         continue strLoop;
                     }
                 }
@@ -364,15 +349,6 @@ final class SelectorUtils {
         return false;
     }
 
-    private static String[] tokenizePathToString(String path, String separator) {
-        List<String> ret = new ArrayList<String>();
-        StringTokenizer st = new StringTokenizer(path, separator);
-        while (st.hasMoreTokens()) {
-            ret.add(st.nextToken());
-        }
-        return ret.toArray(new String[ret.size()]);
-    }
-
     /**
      * Private Constructor
      */
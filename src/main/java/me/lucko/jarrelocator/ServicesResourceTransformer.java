@@ -26,8 +26,6 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.stream.Collectors;
 
 class ServicesResourceTransformer implements ResourceTransformer {
@@ -42,8 +40,7 @@ class ServicesResourceTransformer implements ResourceTransformer {
 
     @Override
     public void processResource(String resource, InputStream inputStream, Collection<Relocation> rules) throws IOException {
-        String serviceClass = relocateIfPossible(resource.substring(SERVICES_PATH.length()), rules);
-        Set<String> serviceLines = this.serviceEntries.computeIfAbsent(SERVICES_PATH + serviceClass, k -> new LinkedHashSet<>());
+        Set<String> serviceLines = this.serviceEntries.computeIfAbsent(relocatePath(resource, rules), k -> new LinkedHashSet<>());
 
         String[] lines = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))
                 .lines()
@@ -57,6 +54,17 @@ class ServicesResourceTransformer implements ResourceTransformer {
         }
     }
 
+    /**
+     * Gets the path which a service file is relocated to.
+     *
+     * @param resource the path of the service file
+     * @param rules the relocation rules
+     * @return the relocated path
+     */
+    static String relocatePath(String resource, Collection<Relocation> rules) {
+        return SERVICES_PATH + relocateIfPossible(resource.substring(SERVICES_PATH.length()), rules);
+    }
+
     private static String relocateIfPossible(String line, Collection<Relocation> rules) {
         for (Relocation rule : rules) {
             if (rule.canRelocateClass(line)) {
@@ -67,21 +75,31 @@ class ServicesResourceTransformer implements ResourceTransformer {
     }
 
     @Override
-    public void writeOutput(JarOutputStream jarOutputStream) throws IOException {
-        this.serviceEntries.values().removeIf(Set::isEmpty);
-        if (this.serviceEntries.isEmpty()) {
-            return;
+    public void writeOutput(ZipWriter zipWriter) throws IOException {
+        for (Map.Entry<String, byte[]> entry : getOutput().entrySet()) {
+            zipWriter.write(entry.getKey(), entry.getValue());
         }
+    }
 
+    /**
+     * Gets the contents of the service files processed so far, merged and relocated.
+     *
+     * @return the contents of the service files, keyed by their relocated path
+     */
+    Map<String, byte[]> getOutput() {
+        Map<String, byte[]> output = new LinkedHashMap<>();
         for (Map.Entry<String, Set<String>> entry : this.serviceEntries.entrySet()) {
-            jarOutputStream.putNextEntry(new JarEntry(entry.getKey()));
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
 
             StringBuilder builder = new StringBuilder();
             for (String line : entry.getValue()) {
                 builder.append(line).append('\n');
             }
-            jarOutputStream.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+            output.put(entry.getKey(), builder.toString().getBytes(StandardCharsets.UTF_8));
         }
+        return output;
     }
 
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An index of the packages referred to by each class in a jar, saved
+ * alongside the output jar, so that when the rules change only the classes
+ * which could be affected by the change need to be relocated again.
+ *
+ * <p>A rule applies to a name if the name starts with the rule's pattern.
+ * For each class, the index records the packages appearing in its path and
+ * its constant pool: every run of characters between {@link #DELIMITERS},
+ * up to its last separator ({@code '/'} or {@code '.'}, both recorded as
+ * {@code '/'}). A pattern containing a separator, but no delimiter, can only
+ * occur in a class within one of these runs, so either inside one of its
+ * packages, or overlapping the end of one and continuing past its last
+ * separator. If neither is the case for any of the packages of a class, the
+ * pattern can't apply to any name in the class.</p>
+ */
+final class SymbolIndex {
+
+    private static final int MAGIC = 0x4A525349; // JRSI
+    private static final int FORMAT_VERSION = 1;
+
+    /** The suffix given to the output jar's name to name its index */
+    private static final String SUFFIX = ".index";
+
+    /** The characters which separate names within a constant, none of which may appear in a pattern */
+    private static final String DELIMITERS = " \t\r\n;()<>[]:*+^\"',=!?&|#{}@%";
+    private static final boolean[] IS_DELIMITER = new boolean[128];
+
+    static {
+        for (int i = 0; i < DELIMITERS.length(); i++) {
+            IS_DELIMITER[DELIMITERS.charAt(i)] = true;
+        }
+    }
+
+    /** The hash of the input jar */
+    private final String inputHash;
+    /** The hash of the output jar */
+    private final String outputHash;
+    /** The fingerprint of the settings, other than the rules, which affect the output */
+    private final String settings;
+    /** The fingerprints of the rules, in order */
+    private final List<String> rules;
+    /** The path patterns of the rules, in order */
+    private final List<String> rulePatterns;
+    /** The packages referred to by each class, keyed by its path in the input jar */
+    private final Map<String, String[]> packages;
+
+    private SymbolIndex(String inputHash, String outputHash, String settings, List<String> rules, List<String> rulePatterns, Map<String, String[]> packages) {
+        this.inputHash = inputHash;
+        this.outputHash = outputHash;
+        this.settings = settings;
+        this.rules = rules;
+        this.rulePatterns = rulePatterns;
+        this.packages = packages;
+    }
+
+    /**
+     * Creates an index of a relocated jar.
+     *
+     * @param inputHash the hash of the input jar
+     * @param outputHash the hash of the output jar
+     * @param settings the fingerprint of the settings, other than the rules, used to relocate it
+     * @param rules the rules used to relocate it
+     * @param packages the packages referred to by each class, keyed by its path in the input jar
+     * @return the index
+     */
+    static SymbolIndex of(String inputHash, String outputHash, String settings, Collection<Relocation> rules, Map<String, String[]> packages) {
+        List<String> rulePatterns = new ArrayList<>(rules.size());
+        for (Relocation rule : rules) {
+            rulePatterns.add(rule.getPathPattern());
+        }
+        return new SymbolIndex(inputHash, outputHash, settings, fingerprints(rules), rulePatterns, packages);
+    }
+
+    private static List<String> fingerprints(Collection<Relocation> rules) {
+        List<String> fingerprints = new ArrayList<>(rules.size());
+        for (Relocation rule : rules) {
+            Fingerprint fingerprint = new Fingerprint();
+            rule.fingerprint(fingerprint);
+            fingerprints.add(fingerprint.toString());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Gets the path of the index of an output jar.
+     *
+     * @param output the output jar
+     * @return the path of its index
+     */
+    static Path pathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + SUFFIX);
+    }
+
+    String getInputHash() {
+        return this.inputHash;
+    }
+
+    String getOutputHash() {
+        return this.outputHash;
+    }
+
+    String getSettings() {
+        return this.settings;
+    }
+
+    /**
+     * Gets the packages referred to by a class.
+     *
+     * @param name the path of the class in the input jar
+     * @return the packages, or null if the class isn't indexed
+     */
+    String[] getPackages(String name) {
+        return this.packages.get(name);
+    }
+
+    /**
+     * Gets the patterns of the rules which have been added, removed or
+     * changed since the index was written.
+     *
+     * @param rules the new rules
+     * @return the path patterns of the changed rules, or null if the changes
+     *         can't be checked against the index
+     */
+    Set<String> getChangedPatterns(Collection<Relocation> rules) {
+        List<String> newRules = fingerprints(rules);
+        List<String> newPatterns = new ArrayList<>(rules.size());
+        for (Relocation rule : rules) {
+            newPatterns.add(rule.getPathPattern());
+        }
+
+        Set<String> oldSet = new HashSet<>(this.rules);
+        Set<String> newSet = new HashSet<>(newRules);
+
+        // the rules in both sets must still be in the same order, since the first rule to match a name wins
+        List<String> oldCommon = new ArrayList<>();
+        for (String rule : this.rules) {
+            if (newSet.contains(rule)) {
+                oldCommon.add(rule);
+            }
+        }
+        List<String> newCommon = new ArrayList<>();
+        for (String rule : newRules) {
+            if (oldSet.contains(rule)) {
+                newCommon.add(rule);
+            }
+        }
+        if (!oldCommon.equals(newCommon)) {
+            return null;
+        }
+
+        Set<String> changed = new LinkedHashSet<>();
+        for (int i = 0; i < this.rules.size(); i++) {
+            if (!newSet.contains(this.rules.get(i))) {
+                changed.add(this.rulePatterns.get(i));
+            }
+        }
+        for (int i = 0; i < newRules.size(); i++) {
+            if (!oldSet.contains(newRules.get(i))) {
+                changed.add(newPatterns.get(i));
+            }
+        }
+
+        for (String pattern : changed) {
+            if (pattern.indexOf('/') == -1 || containsDelimiter(pattern)) {
+                return null;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Tests whether any of the given patterns could apply to a name in a
+     * class which refers to the given packages.
+     *
+     * @param packages the packages referred to by the class
+     * @param patterns the path patterns, each containing a separator and no delimiters
+     * @return true if any pattern could apply
+     */
+    static boolean isAffected(String[] packages, Collection<String> patterns) {
+        for (String pattern : patterns) {
+            for (String pkg : packages) {
+                if (pkg.contains(pattern)) {
+                    return true;
+                }
+                // does the pattern start with a suffix of the package, followed by a separator?
+                int length = pkg.length();
+                for (int start = Math.max(0, length - pattern.length() + 1); start <= length; start++) {
+                    int suffixLength = length - start;
+                    if (pattern.charAt(suffixLength) == '/' && pkg.regionMatches(start, pattern, 0, suffixLength)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the packages referred to by a class.
+     *
+     * @param name the path of the class in its jar
+     * @param classFile the class file
+     * @return the packages, sorted, or null if the class couldn't be parsed
+     */
+    static String[] packagesOf(String name, byte[] classFile) {
+        Set<String> packages = new TreeSet<>();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        addPackages(nameBytes, 0, nameBytes.length, packages);
+
+        try {
+            ClassReader reader = new ClassReader(classFile);
+            for (int i = 1; i < reader.getItemCount(); i++) {
+                int offset = reader.getItem(i);
+                // CONSTANT_Utf8 entries, whose tag precedes the item's offset
+                if (offset != 0 && classFile[offset - 1] == 1) {
+                    int length = reader.readUnsignedShort(offset);
+                    addPackages(classFile, offset + 2, offset + 2 + length, packages);
+                }
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return packages.toArray(new String[0]);
+    }
+
+    /**
+     * Adds the packages in a modified UTF-8 string to a set.
+     */
+    private static void addPackages(byte[] bytes, int start, int end, Set<String> packages) {
+        int runStart = start;
+        int lastSeparator = -1;
+        for (int i = start; i <= end; i++) {
+            int b = i == end ? ' ' : bytes[i];
+            if (b == '/' || b == '.') {
+                lastSeparator = i;
+            } else if (b >= 0 && IS_DELIMITER[b]) {
+                if (lastSeparator > runStart) {
+                    String pkg = ModifiedUtf8.decode(bytes, runStart, lastSeparator - runStart);
+                    packages.add(pkg.replace('.', '/'));
+                }
+                runStart = i + 1;
+                lastSeparator = -1;
+            }
+        }
+    }
+
+    private static boolean containsDelimiter(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (ch < 128 && IS_DELIMITER[ch]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param path the path of the index
+     * @return the index, or null if it doesn't exist or can't be read
+     */
+    static SymbolIndex read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String inputHash = in.readUTF();
+            String outputHash = in.readUTF();
+            String settings = readString(in);
+
+            int ruleCount = in.readInt();
+            List<String> rules = new ArrayList<>(ruleCount);
+            List<String> rulePatterns = new ArrayList<>(ruleCount);
+            for (int i = 0; i < ruleCount; i++) {
+                rules.add(readString(in));
+                rulePatterns.add(readString(in));
+            }
+
+            String[] table = new String[in.readInt()];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = readString(in);
+            }
+
+            int classCount = in.readInt();
+            Map<String, String[]> packages = new HashMap<>(classCount * 2);
+            for (int i = 0; i < classCount; i++) {
+                String name = readString(in);
+                String[] classPackages = new String[in.readInt()];
+                for (int j = 0; j < classPackages.length; j++) {
+                    classPackages[j] = table[in.readInt()];
+                }
+                packages.put(name, classPackages);
+            }
+            return new SymbolIndex(inputHash, outputHash, settings, rules, rulePatterns, packages);
+        } catch (IOException | RuntimeException e) {
+            // unreadable, so start afresh
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index, replacing any existing file atomically.
+     *
+     * @param path the path of the index
+     * @throws IOException if an i/o error occurs
+     */
+    void write(Path path) throws IOException {
+        Map<String, Integer> table = new HashMap<>();
+        List<String> tableEntries = new ArrayList<>();
+        for (String[] classPackages : this.packages.values()) {
+            for (String pkg : classPackages) {
+                if (table.putIfAbsent(pkg, table.size()) == null) {
+                    tableEntries.add(pkg);
+                }
+            }
+        }
+
+        Path temp = TempFiles.createFor(path);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(this.inputHash);
+                out.writeUTF(this.outputHash);
+                writeString(out, this.settings);
+
+                out.writeInt(this.rules.size());
+                for (int i = 0; i < this.rules.size(); i++) {
+                    writeString(out, this.rules.get(i));
+                    writeString(out, this.rulePatterns.get(i));
+                }
+
+                out.writeInt(tableEntries.size());
+                for (String pkg : tableEntries) {
+                    writeString(out, pkg);
+                }
+
+                out.writeInt(this.packages.size());
+                for (Map.Entry<String, String[]> entry : this.packages.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (String pkg : entry.getValue()) {
+                        out.writeInt(table.get(pkg));
+                    }
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
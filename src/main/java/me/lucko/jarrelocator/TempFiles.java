@@ -0,0 +1,60 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Creates the temporary files which outputs are written to before they're
+ * moved into place.
+ */
+final class TempFiles {
+
+    /** The permissions requested for a temporary file, which are masked by the umask, as for any new file */
+    private static final FileAttribute<Set<PosixFilePermission>> DEFAULT_PERMISSIONS = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-"));
+
+    private TempFiles() {
+    }
+
+    /**
+     * Creates a temporary file, with a unique name, in the same directory as
+     * the file it's going to replace, so that it can be moved into place
+     * atomically.
+     *
+     * <p>Unlike {@link Files#createTempFile(Path, String, String, FileAttribute[])}
+     * alone, the file is given the permissions any new file would be, rather
+     * than being readable only by its owner, since it becomes the target.</p>
+     *
+     * @param target the file the temporary file will replace
+     * @return the temporary file
+     * @throws IOException if an i/o error occurs
+     */
+    static Path createFor(Path target) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        String prefix = target.getFileName() + ".";
+        if (Files.getFileStore(directory).supportsFileAttributeView("posix")) {
+            return Files.createTempFile(directory, prefix, ".tmp", DEFAULT_PERMISSIONS);
+        }
+        return Files.createTempFile(directory, prefix, ".tmp");
+    }
+}
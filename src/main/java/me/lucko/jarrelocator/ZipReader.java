@@ -0,0 +1,384 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip file from its central directory.
+ *
+ * <p>Unlike {@link java.util.zip.ZipFile}, entries can be copied in their
+ * compressed form (see {@link #getRawData(Entry)}), so that a
+ * {@link ZipWriter} can write them back out without inflating and deflating
+ * their contents.</p>
+ *
+ * <p>The file can be memory-mapped (if it is smaller than 2 GiB), so entries
+ * are read without system calls or locking. Otherwise it is read with
+ * positional reads, which don't need locking either. Either way, entries may
+ * be read by several threads at once.</p>
+ *
+ * <p>A mapping is released when the reader is closed, as the file can't be
+ * deleted or replaced whilst it is mapped on Windows. Buffers returned by
+ * {@link #getRawData(Entry)} must not be used after that, so a reader which
+ * may be closed whilst other threads are reading from it shouldn't be
+ * mapped.</p>
+ */
+final class ZipReader extends ZipSource {
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    /** Releases a mapping without waiting for it to be garbage collected, or null if that isn't supported */
+    private static final Consumer<MappedByteBuffer> UNMAPPER = findUnmapper();
+
+    private final FileChannel channel;
+    /** The contents of the file, or null if it isn't mapped */
+    private final MappedByteBuffer mapped;
+    private final List<Entry> entries;
+    /** The index of the entry to be returned next by {@link #nextEntry()} */
+    private int nextIndex = 0;
+
+    ZipReader(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * Opens a zip file.
+     *
+     * @param file the file
+     * @param map whether to memory-map the file, if it is small enough
+     * @throws IOException if an i/o error occurs, or the zip is malformed
+     */
+    ZipReader(File file, boolean map) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer mapped = null;
+        try {
+            long size = this.channel.size();
+            mapped = map && size <= Integer.MAX_VALUE ? this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+            this.mapped = mapped;
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException | RuntimeException e) {
+            unmap(mapped);
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of entries in the zip.
+     *
+     * @return the number of entries
+     */
+    int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Entries are returned in the order they appear in the central directory.</p>
+     */
+    @Override
+    Entry nextEntry() {
+        return this.nextIndex < this.entries.size() ? this.entries.get(this.nextIndex++) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the file is memory-mapped, the buffer is a slice of the mapping,
+     * so no data is copied.</p>
+     */
+    @Override
+    ByteBuffer getRawData(Entry entry) throws IOException {
+        if (entry.getCompressedSize() > Integer.MAX_VALUE) {
+            throw new ZipException("entry too large: " + entry.getName());
+        }
+        return slice(dataOffset((FileEntry) entry), (int) entry.getCompressedSize()).asReadOnlyBuffer();
+    }
+
+    @Override
+    void copyRaw(Entry entry, WritableByteChannel out) throws IOException {
+        long position = dataOffset((FileEntry) entry);
+        if (this.mapped != null) {
+            // a mapped file is smaller than 2 GiB, so its entries are too
+            ByteBuffer data = slice(position, (int) entry.getCompressedSize());
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            return;
+        }
+
+        long remaining = entry.getCompressedSize();
+        while (remaining > 0) {
+            long n = this.channel.transferTo(position, remaining, out);
+            if (n <= 0 && position >= this.channel.size()) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            position += n;
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        unmap(this.mapped);
+        this.channel.close();
+    }
+
+    private long dataOffset(FileEntry entry) throws IOException {
+        ByteBuffer header = slice(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header: " + entry.getName());
+        }
+        int nameLength = Short.toUnsignedInt(header.getShort(26));
+        int extraLength = Short.toUnsignedInt(header.getShort(28));
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = this.mapped != null ? this.mapped.capacity() : this.channel.size();
+
+        // The end of central directory record is followed only by the zip comment, so search
+        // backwards for its signature.
+        int searchLength = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = slice(fileSize - searchLength, searchLength);
+        int endIndex = -1;
+        for (int i = searchLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE && i + END_SIZE + Short.toUnsignedInt(tail.getShort(i + 20)) <= searchLength) {
+                endIndex = i;
+                break;
+            }
+        }
+        if (endIndex == -1) {
+            throw new ZipException("zip END header not found");
+        }
+        long endOffset = fileSize - searchLength + endIndex;
+
+        long entryCount = Short.toUnsignedInt(tail.getShort(endIndex + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(endIndex + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(endIndex + 16));
+        long directoryEnd = endOffset;
+
+        if (endOffset >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = slice(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                long zip64EndOffset = locator.getLong(8);
+                ByteBuffer zip64End = slice(zip64EndOffset, ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("invalid zip64 END header");
+                }
+                entryCount = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+                directoryEnd = zip64EndOffset;
+            }
+        }
+
+        // The zip may be prefixed by other data (e.g. a launcher script), in which case the
+        // offsets it records are relative to the start of the zip, not the start of the file.
+        long directoryStart = directoryEnd - directorySize;
+        long base = directoryStart - directoryOffset;
+        if (directoryStart < 0 || base < 0 || directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("invalid END header (bad central directory offset)");
+        }
+
+        ByteBuffer directory = slice(directoryStart, (int) directorySize);
+        List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 0xFFFF));
+        int position = 0;
+        while (position < directorySize) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid CEN header (bad signature)");
+            }
+            int flags = Short.toUnsignedInt(directory.getShort(position + 8));
+            int method = Short.toUnsignedInt(directory.getShort(position + 10));
+            int dosTime = directory.getInt(position + 12);
+            long crc = Integer.toUnsignedLong(directory.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            long size = Integer.toUnsignedLong(directory.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+
+            int nameStart = position + CENTRAL_HEADER_SIZE;
+            int extraStart = nameStart + nameLength;
+            int next = extraStart + extraLength + commentLength;
+            if (next > directorySize) {
+                throw new ZipException("invalid CEN header (bad header size)");
+            }
+            if ((flags & 1) != 0) {
+                throw new ZipException("invalid CEN header (encrypted entry)");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(nameStart);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // sizes and offsets which don't fit in the header are held in the zip64 extra field
+            if (size == 0xFFFFFFFFL || compressedSize == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                int extra = extraStart;
+                int extraEnd = extraStart + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = Short.toUnsignedInt(directory.getShort(extra));
+                    int length = Short.toUnsignedInt(directory.getShort(extra + 2));
+                    if (id == ZIP64_EXTRA_ID) {
+                        int field = extra + 4;
+                        int fieldEnd = Math.min(field + length, extraEnd);
+                        if (size == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                            size = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                            compressedSize = directory.getLong(field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                            localHeaderOffset = directory.getLong(field);
+                        }
+                        break;
+                    }
+                    extra += 4 + length;
+                }
+            }
+            if (size < 0 || compressedSize < 0 || localHeaderOffset < 0) {
+                throw new ZipException("invalid CEN header (bad entry size): " + name);
+            }
+
+            entries.add(new FileEntry(name, method, dosTime, crc, compressedSize, size, base + localHeaderOffset));
+            position = next;
+        }
+        return entries;
+    }
+
+    /**
+     * Gets a little-endian buffer of part of the file. The buffer is a view
+     * of the mapping if the file is mapped, or a copy otherwise.
+     */
+    private ByteBuffer slice(long position, int length) throws IOException {
+        if (this.mapped != null) {
+            if (position < 0 || position + length > this.mapped.capacity()) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            ByteBuffer buffer = this.mapped.duplicate();
+            buffer.position((int) position);
+            buffer.limit((int) position + length);
+            return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, position);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        if (this.mapped != null) {
+            buffer.put(slice(position, buffer.remaining()));
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            int n = this.channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            position += n;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer mapped) {
+        if (mapped != null && UNMAPPER != null) {
+            UNMAPPER.accept(mapped);
+        }
+    }
+
+    /**
+     * Finds a way to release a mapping. There's no public API for this, so the
+     * JDK's internal one is called reflectively.
+     *
+     * @return a function which releases a mapping, or null if none was found
+     */
+    private static Consumer<MappedByteBuffer> findUnmapper() {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeQuietly(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // fall through
+        }
+
+        try {
+            // Java 8
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = invokeQuietly(cleaner, buffer);
+                if (bufferCleaner != null) {
+                    invokeQuietly(clean, bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object invokeQuietly(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // leave the mapping to be released by the garbage collector
+            return null;
+        }
+    }
+
+    /**
+     * An entry in a zip file, as described by its central directory record.
+     */
+    private static final class FileEntry extends Entry {
+        private final long localHeaderOffset;
+
+        FileEntry(String name, int method, int dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+            super(name, method, dosTime, crc, compressedSize, size);
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
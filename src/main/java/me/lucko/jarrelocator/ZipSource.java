@@ -0,0 +1,203 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A source of zip entries, whose contents can be read either decompressed or
+ * in their compressed form.
+ *
+ * <p>Entries are returned one at a time by {@link #nextEntry()}, but once
+ * returned, the contents of any entry may be read at any time before the
+ * source is closed, by several threads at once.</p>
+ *
+ * @see ZipReader
+ * @see ZipStreamReader
+ */
+abstract class ZipSource implements Closeable {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+
+    static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /**
+     * Gets the next entry in the zip.
+     *
+     * @return the entry, or null if there are no more entries
+     * @throws IOException if an i/o error occurs, or the zip is malformed
+     */
+    abstract Entry nextEntry() throws IOException;
+
+    /**
+     * Gets the contents of an entry, exactly as they are stored in the zip
+     * (i.e. without decompressing them).
+     *
+     * @param entry the entry
+     * @return a read-only buffer of the compressed contents
+     * @throws IOException if an i/o error occurs, or the entry is malformed
+     */
+    abstract ByteBuffer getRawData(Entry entry) throws IOException;
+
+    /**
+     * Copies the contents of an entry to the given channel, exactly as they are
+     * stored in the zip (i.e. without decompressing them).
+     *
+     * @param entry the entry
+     * @param out the channel to copy to
+     * @throws IOException if an i/o error occurs
+     */
+    void copyRaw(Entry entry, WritableByteChannel out) throws IOException {
+        ByteBuffer data = getRawData(entry);
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Reads and decompresses the contents of an entry.
+     *
+     * @param entry the entry
+     * @return the contents
+     * @throws IOException if an i/o error occurs, or the entry is malformed
+     */
+    byte[] read(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8 || entry.compressedSize > Integer.MAX_VALUE - 8) {
+            throw new ZipException("entry too large: " + entry.name);
+        }
+
+        ByteBuffer rawData = getRawData(entry);
+        switch (entry.method) {
+            case STORED: {
+                if (entry.size != entry.compressedSize) {
+                    throw new ZipException("invalid entry size: " + entry.name);
+                }
+                byte[] data = new byte[(int) entry.size];
+                rawData.get(data);
+                return data;
+            }
+            case DEFLATED: {
+                // the inflater may need an extra "dummy" byte after the compressed data
+                byte[] compressed = new byte[(int) entry.compressedSize + 1];
+                rawData.get(compressed, 0, (int) entry.compressedSize);
+
+                byte[] data = new byte[(int) entry.size];
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(compressed);
+                    int length = 0;
+                    while (length < data.length) {
+                        int n = inflater.inflate(data, length, data.length - length);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        length += n;
+                    }
+
+                    // the entry must inflate to exactly the size recorded for it
+                    if (length != data.length || (!inflater.finished() && inflater.inflate(new byte[1]) != 0)) {
+                        throw new ZipException("invalid entry size: " + entry.name);
+                    }
+                } catch (DataFormatException e) {
+                    throw new ZipException("invalid entry compressed data: " + entry.name);
+                } finally {
+                    inflater.end();
+                }
+                return data;
+            }
+            default:
+                throw new ZipException("invalid compression method: " + entry.name);
+        }
+    }
+
+    /**
+     * Opens a stream over the decompressed contents of an entry.
+     *
+     * @param entry the entry
+     * @return a stream of the contents
+     * @throws IOException if an i/o error occurs, or the entry is malformed
+     */
+    InputStream getInputStream(Entry entry) throws IOException {
+        return new ByteArrayInputStream(read(entry));
+    }
+
+    /**
+     * An entry in a zip.
+     */
+    static class Entry {
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+
+        Entry(String name, int method, int dosTime, long crc, long compressedSize, long size) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+
+        int getMethod() {
+            return this.method;
+        }
+
+        int getDosTime() {
+            return this.dosTime;
+        }
+
+        long getCrc() {
+            return this.crc;
+        }
+
+        long getCompressedSize() {
+            return this.compressedSize;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip from a stream, in the order of their local
+ * headers, without waiting for the central directory at the end.
+ *
+ * <p>Like {@link java.util.zip.ZipInputStream}, entries are read as they
+ * arrive, but their compressed contents are kept (in memory, until the entry
+ * is no longer referenced), so they can still be copied without being
+ * inflated and deflated again.</p>
+ *
+ * <p>Since the central directory is never consulted:</p>
+ * <ul>
+ *     <li>Any data before the first local header (e.g. a launcher script) is skipped.</li>
+ *     <li>Every entry with a local header is returned, including any which the
+ *     central directory doesn't refer to (e.g. entries left behind by tools
+ *     which update zips by appending to them).</li>
+ *     <li>If several entries have the same name, only the first is returned;
+ *     the others are read and discarded.</li>
+ *     <li>The sizes of entries written with a data descriptor are found by
+ *     inflating them, so such entries must be deflated.</li>
+ *     <li>Once the central directory is reached, the rest of the stream is
+ *     read and discarded.</li>
+ * </ul>
+ *
+ * <p>The stream is not closed when the reader is closed.</p>
+ */
+final class ZipStreamReader extends ZipSource {
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    /** General purpose flag indicating the entry is encrypted */
+    private static final int ENCRYPTED_FLAG = 0x1;
+    /** General purpose flag indicating the sizes and CRC of the entry follow its data */
+    private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    /** The position of the next unread byte in the buffer */
+    private int position = 0;
+    /** The number of bytes in the buffer */
+    private int limit = 0;
+
+    /** The names of the entries returned so far */
+    private final Set<String> names = new HashSet<>();
+    /** The inflater used to find the end of entries written with a data descriptor */
+    private final Inflater inflater = new Inflater(true);
+    /** Scratch space for the output of the inflater, which is discarded */
+    private final byte[] inflated = new byte[BUFFER_SIZE];
+
+    /** If the first local header has been found */
+    private boolean started = false;
+    /** If the end of the entries has been reached */
+    private boolean finished = false;
+
+    ZipStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    Entry nextEntry() throws IOException {
+        while (!this.finished) {
+            int signature;
+            if (this.started) {
+                signature = readInt();
+            } else {
+                signature = skipToFirstHeader();
+                this.started = true;
+            }
+
+            if (signature == CENTRAL_HEADER_SIGNATURE || signature == END_SIGNATURE || signature == ZIP64_END_SIGNATURE) {
+                // the entries are followed by the central directory, which we don't need
+                this.finished = true;
+                drain();
+                break;
+            }
+            if (signature != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid LOC header (bad signature)");
+            }
+
+            StreamEntry entry = readEntry();
+            if (this.names.add(entry.getName())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    ByteBuffer getRawData(Entry entry) {
+        return ByteBuffer.wrap(((StreamEntry) entry).data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Releases the resources held by the reader. The underlying stream is not closed.
+     */
+    @Override
+    public void close() {
+        this.inflater.end();
+    }
+
+    /**
+     * Reads an entry, from just after the signature of its local header to the
+     * end of its data (and data descriptor, if any).
+     */
+    private StreamEntry readEntry() throws IOException {
+        skip(2); // version needed to extract
+        int flags = readShort();
+        int method = readShort();
+        int dosTime = readInt();
+        long crc = Integer.toUnsignedLong(readInt());
+        long compressedSize = Integer.toUnsignedLong(readInt());
+        long size = Integer.toUnsignedLong(readInt());
+        int nameLength = readShort();
+        int extraLength = readShort();
+        String name = new String(readBytes(nameLength), StandardCharsets.UTF_8);
+        byte[] extra = readBytes(extraLength);
+
+        if ((flags & ENCRYPTED_FLAG) != 0) {
+            throw new ZipException("invalid LOC header (encrypted entry): " + name);
+        }
+
+        // sizes which don't fit in the header are held in the zip64 extra field
+        boolean zip64 = false;
+        ByteBuffer extraBuffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        int extraPosition = 0;
+        while (extraPosition + 4 <= extraLength) {
+            int id = Short.toUnsignedInt(extraBuffer.getShort(extraPosition));
+            int length = Short.toUnsignedInt(extraBuffer.getShort(extraPosition + 2));
+            if (id == ZIP64_EXTRA_ID) {
+                zip64 = true;
+                int field = extraPosition + 4;
+                int fieldEnd = Math.min(field + length, extraLength);
+                // local headers should hold both sizes, but some writers only include those which overflowed
+                boolean bothSizes = field + 16 <= fieldEnd;
+                if ((size == ZIP64_MAGIC || bothSizes) && field + 8 <= fieldEnd) {
+                    long zip64Size = extraBuffer.getLong(field);
+                    size = size == ZIP64_MAGIC ? zip64Size : size;
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC && field + 8 <= fieldEnd) {
+                    compressedSize = extraBuffer.getLong(field);
+                }
+                break;
+            }
+            extraPosition += 4 + length;
+        }
+
+        if ((flags & DATA_DESCRIPTOR_FLAG) == 0) {
+            if (compressedSize < 0 || compressedSize > MAX_ENTRY_SIZE) {
+                throw new ZipException("entry too large: " + name);
+            }
+            byte[] data = readBytes((int) compressedSize);
+            return new StreamEntry(name, method, dosTime, crc, compressedSize, size, data);
+        }
+
+        if (method != DEFLATED) {
+            throw new ZipException("only DEFLATED entries can have EXT descriptor: " + name);
+        }
+
+        byte[] data = readDeflated(name);
+        size = this.inflater.getBytesWritten();
+        compressedSize = data.length;
+
+        // the data descriptor's signature is optional
+        int signature = readInt();
+        crc = Integer.toUnsignedLong(signature == DATA_DESCRIPTOR_SIGNATURE ? readInt() : signature);
+        long descriptorCompressedSize;
+        long descriptorSize;
+        if (zip64 || size >= ZIP64_MAGIC) {
+            descriptorCompressedSize = readLong();
+            descriptorSize = readLong();
+        } else {
+            descriptorCompressedSize = Integer.toUnsignedLong(readInt());
+            descriptorSize = Integer.toUnsignedLong(readInt());
+        }
+        if (descriptorCompressedSize != compressedSize) {
+            throw new ZipException("invalid entry compressed size (expected " + descriptorCompressedSize + " but got " + compressedSize + " bytes): " + name);
+        }
+        if (descriptorSize != size) {
+            throw new ZipException("invalid entry size (expected " + descriptorSize + " but got " + size + " bytes): " + name);
+        }
+        return new StreamEntry(name, DEFLATED, dosTime, crc, compressedSize, size, data);
+    }
+
+    /**
+     * Reads deflated data of unknown length, by inflating it until the end of
+     * the deflate stream is found.
+     *
+     * @return the compressed data
+     */
+    private byte[] readDeflated(String name) throws IOException {
+        Inflater inflater = this.inflater;
+        inflater.reset();
+
+        byte[] data = new byte[1024];
+        int length = 0;
+        // the start of the input given to the inflater, in the buffer (none yet)
+        int inputStart = this.limit;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    // keep the input consumed so far, before the buffer is refilled
+                    data = append(data, length, inputStart, this.limit - inputStart, name);
+                    length += this.limit - inputStart;
+                    if (this.position == this.limit) {
+                        fill();
+                    }
+                    inflater.setInput(this.buffer, this.position, this.limit - this.position);
+                    inputStart = this.position;
+                    this.position = this.limit;
+                }
+                if (inflater.inflate(this.inflated) == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("invalid entry compressed data: " + name);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("invalid entry compressed data: " + name);
+        }
+
+        // hand back the input which followed the end of the deflate stream
+        this.position = this.limit - inflater.getRemaining();
+        data = append(data, length, inputStart, this.position - inputStart, name);
+        length += this.position - inputStart;
+        return data.length == length ? data : Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Appends part of the buffer to an array, growing the array if needed.
+     */
+    private byte[] append(byte[] data, int length, int start, int count, String name) throws ZipException {
+        if (length + count > MAX_ENTRY_SIZE) {
+            throw new ZipException("entry too large: " + name);
+        }
+        if (length + count > data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(Math.max((long) data.length * 2, length + count), MAX_ENTRY_SIZE));
+        }
+        System.arraycopy(this.buffer, start, data, length, count);
+        return data;
+    }
+
+    /**
+     * Skips any data before the first header of the zip.
+     *
+     * @return the signature of the first header
+     */
+    private int skipToFirstHeader() throws IOException {
+        int signature = 0;
+        for (int count = 1; ; count++) {
+            if (this.position == this.limit && !tryFill()) {
+                throw new ZipException("zip header not found");
+            }
+            signature = (signature >>> 8) | (this.buffer[this.position++] << 24);
+            if (count >= 4 && (signature == LOCAL_HEADER_SIGNATURE || signature == END_SIGNATURE)) {
+                return signature;
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        this.position = this.limit;
+        while (tryFill()) {
+            this.position = this.limit;
+        }
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            if (this.position == this.limit) {
+                if (length - copied >= this.buffer.length) {
+                    // read large blocks directly, without copying them through the buffer
+                    int n = this.in.read(bytes, copied, length - copied);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of zip stream");
+                    }
+                    copied += n;
+                    continue;
+                }
+                fill();
+            }
+            int n = Math.min(length - copied, this.limit - this.position);
+            System.arraycopy(this.buffer, this.position, bytes, copied, n);
+            this.position += n;
+            copied += n;
+        }
+        return bytes;
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            if (this.position == this.limit) {
+                fill();
+            }
+            int n = Math.min(length, this.limit - this.position);
+            this.position += n;
+            length -= n;
+        }
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private int readInt() throws IOException {
+        return readShort() | (readShort() << 16);
+    }
+
+    private long readLong() throws IOException {
+        return Integer.toUnsignedLong(readInt()) | ((long) readInt() << 32);
+    }
+
+    private int readByte() throws IOException {
+        if (this.position == this.limit) {
+            fill();
+        }
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    private void fill() throws IOException {
+        if (!tryFill()) {
+            throw new EOFException("Unexpected end of zip stream");
+        }
+    }
+
+    /**
+     * Refills the (empty) buffer from the stream.
+     *
+     * @return false if the end of the stream was reached
+     */
+    private boolean tryFill() throws IOException {
+        int n;
+        do {
+            n = this.in.read(this.buffer, 0, this.buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        this.position = 0;
+        this.limit = n;
+        return true;
+    }
+
+    /**
+     * An entry read from the stream, along with its compressed contents.
+     */
+    private static final class StreamEntry extends Entry {
+        private final byte[] data;
+
+        StreamEntry(String name, int method, int dosTime, long crc, long compressedSize, long size, byte[] data) {
+            super(name, method, dosTime, crc, compressedSize, size);
+            this.data = data;
+        }
+    }
+}
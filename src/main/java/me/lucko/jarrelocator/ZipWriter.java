@@ -0,0 +1,532 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * Writes entries to a jar file.
+ *
+ * <p>Entries are either compressed as they are written, written from data
+ * which has already been compressed, or copied in their compressed form from
+ * a {@link ZipSource}. The size and CRC of every entry are known before it is
+ * written, so (unlike {@link java.util.jar.JarOutputStream}) no data
+ * descriptors are needed, and the central directory is written at the end
+ * from the metadata recorded for each entry.</p>
+ *
+ * <p>Output is collected in a large direct buffer, and written to the channel
+ * in big blocks. Payloads larger than the buffer are written to the channel
+ * directly.</p>
+ */
+final class ZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA_MAX_SIZE = 28;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /** General purpose flag indicating the entry name is encoded in UTF-8 */
+    private static final int UTF8_FLAG = 0x800;
+
+    /** The extra field marking a zip as a jar, added to the first entry (as by JarOutputStream) */
+    private static final byte[] JAR_MAGIC_EXTRA = {(byte) 0xFE, (byte) 0xCA, 0, 0};
+    private static final byte[] NO_EXTRA = new byte[0];
+
+    /** The size of the output buffer */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    /** The number of bytes written to the channel so far */
+    private long flushed = 0;
+
+    /** The DOS timestamp given to new entries */
+    private final int dosTime;
+
+    /** The central directory records of the entries written so far */
+    private final List<CentralRecord> records = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+
+    /** The policy deciding how new entries are compressed */
+    private final CompressionPolicy policy;
+    /** The pool of deflaters used to compress new entries, which may be shared with other writers */
+    private final DeflaterPool deflaters;
+
+    /** If the central directory has been written */
+    private boolean finished = false;
+
+    /** The digest used to hash the data of each entry, or null if entries aren't hashed */
+    private MessageDigest entryDigest = null;
+    /** The SHA-256 digests of the data of each entry written so far, keyed by name, in order */
+    private Map<String, String> entryDigests = null;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param channel the channel to write to
+     * @param time the modification time given to new entries, in milliseconds since the epoch
+     * @param policy the policy deciding how new entries are compressed
+     * @param deflaters the pool of deflaters used to compress new entries
+     */
+    ZipWriter(WritableByteChannel channel, long time, CompressionPolicy policy, DeflaterPool deflaters) {
+        this.channel = channel;
+        this.dosTime = toDosTime(time);
+        this.policy = policy;
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * Hashes the data of every entry written from now on with SHA-256.
+     *
+     * @see #getEntryDigests()
+     */
+    void enableEntryDigests() {
+        this.entryDigest = Hashing.sha256();
+        this.entryDigests = new LinkedHashMap<>();
+    }
+
+    /**
+     * Gets the SHA-256 digests of the data of each file entry written, as it
+     * is stored in the zip (so after compression).
+     *
+     * @return the digests in hex, keyed by entry name, in the order written,
+     *         or null if {@link #enableEntryDigests() not enabled}
+     */
+    Map<String, String> getEntryDigests() {
+        return this.entryDigests;
+    }
+
+    /**
+     * Writes a directory entry.
+     *
+     * @param name the name of the directory, ending in "/"
+     * @throws IOException if an i/o error occurs, or an entry with the same name has already been written
+     */
+    void writeDirectory(String name) throws IOException {
+        writeHeader(name, ZipSource.STORED, this.dosTime, 0, 0, 0);
+    }
+
+    /**
+     * Compresses and writes an entry, using the timestamp given to new entries.
+     *
+     * @param name the name of the entry
+     * @param data the contents of the entry
+     * @throws IOException if an i/o error occurs, or an entry with the same name has already been written
+     */
+    void write(String name, byte[] data) throws IOException {
+        writeCompressed(name, compress(name, data), this.dosTime);
+    }
+
+    /**
+     * Compresses and writes an entry.
+     *
+     * @param name the name of the entry
+     * @param data the contents of the entry
+     * @param dosTime the modification time of the entry, in MS-DOS format
+     * @throws IOException if an i/o error occurs, or an entry with the same name has already been written
+     */
+    void write(String name, byte[] data, int dosTime) throws IOException {
+        writeCompressed(name, compress(name, data), dosTime);
+    }
+
+    /**
+     * Compresses the contents of an entry as the {@link CompressionPolicy}
+     * dictates, ahead of writing it with {@link #writeCompressed(String, CompressedData)}.
+     *
+     * <p>This may be called by several threads at once, and concurrently with
+     * the other methods of the writer.</p>
+     *
+     * @param name the name of the entry
+     * @param data the contents of the entry
+     * @return the compressed contents
+     */
+    CompressedData compress(String name, byte[] data) {
+        return CompressedData.compress(data, this.policy.getLevel(name), this.policy.isIncompressibleProbe(), this.deflaters);
+    }
+
+    /**
+     * Gets the compression level the {@link CompressionPolicy} chooses for
+     * an entry.
+     *
+     * @param name the name of the entry
+     * @return the compression level
+     */
+    int getLevel(String name) {
+        return this.policy.getLevel(name);
+    }
+
+    boolean isIncompressibleProbe() {
+        return this.policy.isIncompressibleProbe();
+    }
+
+    /**
+     * Writes an entry whose contents have already been compressed, using the
+     * timestamp given to new entries.
+     *
+     * @param name the name of the entry
+     * @param data the compressed contents
+     * @throws IOException if an i/o error occurs, or an entry with the same name has already been written
+     */
+    void writeCompressed(String name, CompressedData data) throws IOException {
+        writeCompressed(name, data, this.dosTime);
+    }
+
+    private void writeCompressed(String name, CompressedData data, int dosTime) throws IOException {
+        ByteBuffer buffer = data.getData();
+        writeHeader(name, data.getMethod(), dosTime, data.getCrc(), buffer.remaining(), data.getSize());
+        if (this.entryDigest != null) {
+            this.entryDigest.update(buffer.duplicate());
+            recordEntryDigest(name);
+        }
+        writeData(buffer);
+    }
+
+    private void recordEntryDigest(String name) {
+        this.entryDigests.put(name, Hashing.hex(this.entryDigest.digest()));
+    }
+
+    /**
+     * Gets whether an entry can be copied from another zip in its compressed
+     * form with {@link #writeRaw(String, ZipSource, ZipSource.Entry)}, i.e.
+     * whether it is compressed with the method the {@link CompressionPolicy}
+     * chooses for it.
+     *
+     * @param name the name to give the entry
+     * @param entry the entry to copy
+     * @return true if the entry can be copied as-is
+     */
+    boolean canWriteRaw(String name, ZipSource.Entry entry) {
+        return entry.getMethod() == this.policy.getMethod(name);
+    }
+
+    /**
+     * Writes an entry by copying its compressed contents from another zip.
+     *
+     * <p>The compression method, timestamp, CRC and sizes of the entry are
+     * all kept; only its name may change.</p>
+     *
+     * @param name the name to give the entry
+     * @param reader the zip to copy from
+     * @param entry the entry to copy
+     * @throws IOException if an i/o error occurs, or an entry with the same name has already been written
+     */
+    void writeRaw(String name, ZipSource reader, ZipSource.Entry entry) throws IOException {
+        if (entry.getMethod() != ZipSource.STORED && entry.getMethod() != ZipSource.DEFLATED) {
+            throw new ZipException("invalid compression method: " + entry.getName());
+        }
+        writeHeader(name, entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+        if (entry.getCompressedSize() <= this.buffer.capacity()) {
+            ByteBuffer data = reader.getRawData(entry);
+            if (this.entryDigest != null) {
+                this.entryDigest.update(data.duplicate());
+            }
+            writeData(data);
+        } else {
+            flush();
+            reader.copyRaw(entry, this.entryDigest == null ? this.channel : new DigestingChannel(this.channel, this.entryDigest));
+            this.flushed += entry.getCompressedSize();
+        }
+        if (this.entryDigest != null) {
+            recordEntryDigest(name);
+        }
+    }
+
+    private void writeHeader(String name, int method, int dosTime, long crc, long compressedSize, long size) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_LENGTH) {
+            throw new ZipException("entry name too long: " + name);
+        }
+        if (!this.names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        CentralRecord record = new CentralRecord(nameBytes, method, dosTime, crc, compressedSize, size, position(), this.records.isEmpty());
+        this.records.add(record);
+
+        ensureCapacity(LOCAL_HEADER_SIZE + nameBytes.length + ZIP64_EXTRA_MAX_SIZE + JAR_MAGIC_EXTRA.length);
+        ByteBuffer buffer = this.buffer;
+        boolean zip64Sizes = record.hasZip64Sizes();
+        byte[] extra = record.jarMagic ? JAR_MAGIC_EXTRA : NO_EXTRA;
+
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) record.version());
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) method);
+        buffer.putInt(dosTime);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) (zip64Sizes ? ZIP64_MAGIC : compressedSize));
+        buffer.putInt((int) (zip64Sizes ? ZIP64_MAGIC : size));
+        buffer.putShort((short) nameBytes.length);
+        buffer.putShort((short) ((zip64Sizes ? 20 : 0) + extra.length));
+        buffer.put(nameBytes);
+        if (zip64Sizes) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) 16);
+            buffer.putLong(size);
+            buffer.putLong(compressedSize);
+        }
+        buffer.put(extra);
+    }
+
+    /**
+     * Writes the central directory, completing the zip, without closing the
+     * underlying channel. No more entries may be written afterwards.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    void finish() throws IOException {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+
+        long directoryOffset = position();
+        for (CentralRecord record : this.records) {
+            writeCentralRecord(record);
+        }
+        long directorySize = position() - directoryOffset;
+        long entryCount = this.records.size();
+
+        ensureCapacity(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE + END_SIZE);
+        ByteBuffer buffer = this.buffer;
+        boolean zip64 = entryCount >= ZIP64_MAGIC_COUNT || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position();
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(ZIP64_END_SIZE - 12); // size of the remaining record
+            buffer.putShort((short) 45); // version made by
+            buffer.putShort((short) 45); // version needed to extract
+            buffer.putInt(0); // number of this disk
+            buffer.putInt(0); // disk with the central directory
+            buffer.putLong(entryCount);
+            buffer.putLong(entryCount);
+            buffer.putLong(directorySize);
+            buffer.putLong(directoryOffset);
+
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0); // disk with the zip64 end record
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1); // total number of disks
+        }
+
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0); // number of this disk
+        buffer.putShort((short) 0); // disk with the central directory
+        buffer.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        buffer.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        buffer.putInt((int) Math.min(directorySize, ZIP64_MAGIC));
+        buffer.putInt((int) Math.min(directoryOffset, ZIP64_MAGIC));
+        buffer.putShort((short) 0); // comment length
+        flush();
+    }
+
+    /**
+     * Writes the central directory, if it hasn't been already, and closes the
+     * underlying channel.
+     *
+     * @throws IOException if an i/o error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void writeCentralRecord(CentralRecord record) throws IOException {
+        ensureCapacity(CENTRAL_HEADER_SIZE + record.name.length + ZIP64_EXTRA_MAX_SIZE + JAR_MAGIC_EXTRA.length);
+        ByteBuffer buffer = this.buffer;
+        boolean zip64Sizes = record.hasZip64Sizes();
+        boolean zip64Offset = record.offset >= ZIP64_MAGIC;
+        int zip64Length = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+        byte[] extra = record.jarMagic ? JAR_MAGIC_EXTRA : NO_EXTRA;
+
+        buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+        buffer.putShort((short) record.version());
+        buffer.putShort((short) record.version());
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) record.method);
+        buffer.putInt(record.dosTime);
+        buffer.putInt((int) record.crc);
+        buffer.putInt((int) (zip64Sizes ? ZIP64_MAGIC : record.compressedSize));
+        buffer.putInt((int) (zip64Sizes ? ZIP64_MAGIC : record.size));
+        buffer.putShort((short) record.name.length);
+        buffer.putShort((short) ((zip64Length == 0 ? 0 : 4 + zip64Length) + extra.length));
+        buffer.putShort((short) 0); // comment length
+        buffer.putShort((short) 0); // disk number
+        buffer.putShort((short) 0); // internal attributes
+        buffer.putInt(0); // external attributes
+        buffer.putInt((int) (zip64Offset ? ZIP64_MAGIC : record.offset));
+        buffer.put(record.name);
+        if (zip64Length != 0) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) zip64Length);
+            if (zip64Sizes) {
+                buffer.putLong(record.size);
+                buffer.putLong(record.compressedSize);
+            }
+            if (zip64Offset) {
+                buffer.putLong(record.offset);
+            }
+        }
+        buffer.put(extra);
+    }
+
+    /**
+     * Gets the number of entries written so far.
+     *
+     * @return the number of entries
+     */
+    int getEntryCount() {
+        return this.records.size();
+    }
+
+    /**
+     * Gets the number of bytes written so far, including any still buffered.
+     *
+     * @return the number of bytes
+     */
+    long getSize() {
+        return position();
+    }
+
+    private long position() {
+        return this.flushed + this.buffer.position();
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (this.buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void writeData(ByteBuffer data) throws IOException {
+        if (data.remaining() > this.buffer.remaining()) {
+            flush();
+            if (data.remaining() > this.buffer.remaining()) {
+                this.flushed += writeFully(data);
+                return;
+            }
+        }
+        this.buffer.put(data);
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        this.flushed += writeFully(this.buffer);
+        this.buffer.clear();
+    }
+
+    private int writeFully(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            this.channel.write(data);
+        }
+        return length;
+    }
+
+    /**
+     * Converts a time in milliseconds since the epoch to the MS-DOS date and
+     * time format used by zip headers, in the system time zone.
+     *
+     * @param time the time
+     * @return the time in MS-DOS format
+     */
+    static int toDosTime(long time) {
+        LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = dateTime.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | dateTime.getMonthValue() << 21
+                | dateTime.getDayOfMonth() << 16
+                | dateTime.getHour() << 11
+                | dateTime.getMinute() << 5
+                | dateTime.getSecond() >> 1;
+    }
+
+    /**
+     * The metadata of a written entry, from which its central directory
+     * header is written.
+     */
+    private static final class CentralRecord {
+        private final byte[] name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        /** The offset of the entry's local header */
+        private final long offset;
+        /** If the jar magic extra field is added to the entry */
+        private final boolean jarMagic;
+
+        CentralRecord(byte[] name, int method, int dosTime, long crc, long compressedSize, long size, long offset, boolean jarMagic) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.jarMagic = jarMagic;
+        }
+
+        boolean hasZip64Sizes() {
+            return this.size >= ZIP64_MAGIC || this.compressedSize >= ZIP64_MAGIC;
+        }
+
+        int version() {
+            if (hasZip64Sizes() || this.offset >= ZIP64_MAGIC) {
+                return 45;
+            }
+            return this.method == ZipSource.DEFLATED ? 20 : 10;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import me.lucko.jarrelocator.fixture.Fixture;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the {@link ClassEngine#CONSTANT_POOL} engine relocates classes
+ * to the same result as the {@link ClassEngine#ASM} engine.
+ *
+ * <p>Classes are compared by their ASM text dumps, which hold everything but
+ * the layout of the constant pool.</p>
+ */
+class ClassEngineEquivalenceTest {
+    private static final String FIXTURE = "me/lucko/jarrelocator/fixture/Fixture";
+    private static final String FIXTURE_DESC = "L" + FIXTURE + ";";
+
+    private static final List<Relocation> RULES = Collections.singletonList(
+            new Relocation("me.lucko.jarrelocator.fixture", "shaded.fixture")
+    );
+
+    @Test
+    void fixtureClasses() throws IOException, URISyntaxException {
+        Path directory = Paths.get(Fixture.class.getResource("Fixture.class").toURI()).getParent();
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            classFiles = files.filter(file -> file.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        // the fixture, its annotation, and its inner, anonymous, lambda and switch map classes
+        assertTrue(classFiles.size() >= 7, classFiles::toString);
+
+        for (Path file : classFiles) {
+            byte[] classFile = Files.readAllBytes(file);
+            String name = "me/lucko/jarrelocator/fixture/" + file.getFileName();
+            assertEquivalent(RULES, classFile, name, true);
+            assertEquivalent(RULES, classFile, "META-INF/versions/9/" + name, true);
+        }
+    }
+
+    @Test
+    void constantsAndBootstrapArguments() {
+        Handle bootstrap = new Handle(Opcodes.H_INVOKESTATIC, FIXTURE, "bootstrap",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;[Ljava/lang/Object;)" + FIXTURE_DESC, false);
+        Handle handle = new Handle(Opcodes.H_INVOKEVIRTUAL, FIXTURE, "map", "(Ljava/util/List;)Ljava/util/List;", false);
+        Object[] arguments = {
+                Type.getObjectType(FIXTURE),
+                Type.getType("[" + FIXTURE_DESC),
+                Type.getMethodType("(" + FIXTURE_DESC + ")[" + FIXTURE_DESC),
+                handle,
+                "me.lucko.jarrelocator.fixture.Fixture",
+                "META-INF/versions/9/" + FIXTURE,
+                new ConstantDynamic("nested", FIXTURE_DESC, bootstrap, Type.getObjectType(FIXTURE), handle)
+        };
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "me/lucko/jarrelocator/fixture/Constants", null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        for (Object argument : arguments) {
+            mv.visitLdcInsn(argument);
+            mv.visitInsn(Opcodes.POP);
+        }
+        mv.visitInvokeDynamicInsn("create", "(" + FIXTURE_DESC + ")" + FIXTURE_DESC, bootstrap, arguments);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+
+        assertEquivalent(RULES, writer.toByteArray(), "me/lucko/jarrelocator/fixture/Constants.class", true);
+    }
+
+    @Test
+    void sharedUtf8Entries() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, FIXTURE + "$Shared", null, "java/lang/Object", null);
+        writer.visitNestHost(FIXTURE);
+        writer.visitPermittedSubclass(FIXTURE);
+        writer.visitRecordComponent("value", FIXTURE_DESC, "L" + FIXTURE + "<*>;").visitEnd();
+        // the class name, a member name and a string constant share a single Utf8 entry,
+        // which must keep its value for the member name while being relocated elsewhere
+        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, FIXTURE, FIXTURE_DESC, null, null).visitEnd();
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, FIXTURE_DESC, "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(Type.getObjectType(FIXTURE));
+        mv.visitLdcInsn(FIXTURE);
+        mv.visitLdcInsn(FIXTURE_DESC);
+        mv.visitInsn(Opcodes.POP2);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, FIXTURE + "$Shared", FIXTURE, FIXTURE_DESC);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+
+        assertEquivalent(RULES, writer.toByteArray(), FIXTURE + "$Shared.class", true);
+    }
+
+    @Test
+    void unaffectedClassesAreReturnedAsIs() throws IOException {
+        byte[] classFile = readClass(String.class);
+        for (ClassEngine engine : ClassEngine.values()) {
+            assertSame(classFile, new ClassRelocator(RULES).withClassEngine(engine).relocate(classFile));
+        }
+
+        // a class which names the fixture package, but only in places no rule applies to
+        List<Relocation> rules = Collections.singletonList(new Relocation("me.lucko.jarrelocator.fixture", "shaded.fixture",
+                Collections.emptyList(), Collections.singletonList("me.lucko.jarrelocator.fixture.**")));
+        byte[] fixture = readClass(Fixture.class);
+        assertSame(fixture, new ConstantPoolRelocator(new ClassRelocator(rules).getRemapper()).relocate(fixture, FIXTURE + ".class"));
+        assertEquivalent(rules, fixture, FIXTURE + ".class", false);
+    }
+
+    @Test
+    void sourceFileQualifiedWithPackage() {
+        // the rule only matches the source file name once the package of the class is prepended
+        List<Relocation> rules = Collections.singletonList(new Relocation("com.foo.Main", "com.bar.Entry"));
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/foo/Helper", null, "java/lang/Object", null);
+        writer.visitSource("Main.java", null);
+        writer.visitField(Opcodes.ACC_PRIVATE, "value", "I", null, null).visitEnd();
+        writer.visitEnd();
+        byte[] classFile = writer.toByteArray();
+
+        for (ClassEngine engine : ClassEngine.values()) {
+            ClassRelocator relocator = new ClassRelocator(rules).withClassEngine(engine);
+            for (String name : new String[]{"com/foo/Helper.class", null}) {
+                assertTrue(relocator.mayRelocate(classFile, name));
+                ClassReader reader = new ClassReader(relocator.relocate(classFile, name));
+                ClassNode node = new ClassNode();
+                reader.accept(node, 0);
+                assertEquals("Entry.java", node.sourceFile, engine + " " + name);
+            }
+        }
+        assertEquivalent(rules, classFile, "com/foo/Helper.class", true);
+
+        // the same source file in another package is unaffected
+        writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/baz/Helper", null, "java/lang/Object", null);
+        writer.visitSource("Main.java", null);
+        writer.visitEnd();
+        byte[] other = writer.toByteArray();
+        assertSame(other, new ClassRelocator(rules).relocate(other, "com/baz/Helper.class"));
+        assertSame(other, new ClassRelocator(rules).relocate(other));
+    }
+
+    @Test
+    void asmClasses() throws IOException, URISyntaxException {
+        List<Relocation> rules = Collections.singletonList(new Relocation("org.objectweb.asm", "x.asm"));
+        int count = 0;
+        for (Class<?> clazz : new Class<?>[]{ClassReader.class, ClassNode.class, Analyzer.class, Remapper.class, TraceClassVisitor.class}) {
+            Path jar = Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+            try (ZipFile zip = new ZipFile(jar.toFile())) {
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.getName().endsWith(".class") || entry.getName().endsWith("module-info.class")) {
+                        continue;
+                    }
+                    byte[] classFile;
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        classFile = readAll(in);
+                    }
+                    assertEquivalent(rules, classFile, entry.getName(), true);
+                    count++;
+                }
+            }
+        }
+        assertTrue(count > 100, "only " + count + " classes");
+    }
+
+    private static void assertEquivalent(List<Relocation> rules, byte[] classFile, String name, boolean relocated) {
+        ClassRelocator relocator = new ClassRelocator(rules).withClassEngine(ClassEngine.ASM);
+        String expected = dump(relocator.relocate(classFile, name));
+
+        // call the engine directly, as the relocator would fall back to ASM if it couldn't handle the class
+        byte[] actual = new ConstantPoolRelocator(relocator.getRemapper()).relocate(classFile, name);
+        assertNotNull(actual, () -> "constant pool engine couldn't handle " + name);
+        assertEquals(expected, dump(actual), name);
+
+        if (relocated) {
+            assertNotEquals(dump(classFile), expected, () -> name + " is unaffected by the rules");
+        } else {
+            assertEquals(dump(classFile), expected, name);
+        }
+    }
+
+    private static String dump(byte[] classFile) {
+        // rewrite the class first, so that frames are written the same way whichever engine produced them
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classFile).accept(writer, ClassReader.EXPAND_FRAMES);
+        StringWriter out = new StringWriter();
+        new ClassReader(writer.toByteArray()).accept(new TraceClassVisitor(new PrintWriter(out)), ClassReader.EXPAND_FRAMES);
+        return out.toString();
+    }
+
+    private static byte[] readClass(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
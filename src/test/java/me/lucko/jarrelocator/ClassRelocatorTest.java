@@ -0,0 +1,52 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks {@link ClassRelocator#relocateAll(Map, java.util.concurrent.Executor)}.
+ */
+class ClassRelocatorTest {
+
+    @Test
+    void firstDuplicateEntryWins() {
+        ClassRelocator relocator = new ClassRelocator(Collections.singletonMap("com.example", "shaded.example"));
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("shaded/example/resource.txt", bytes("first"));
+        entries.put("other.txt", bytes("other"));
+        entries.put("com/example/resource.txt", bytes("second"));
+
+        Map<String, byte[]> relocated = relocator.relocateAll(entries, Runnable::run);
+        assertEquals(Arrays.asList("shaded/example/resource.txt", "other.txt"), new ArrayList<>(relocated.keySet()));
+        assertArrayEquals(bytes("first"), relocated.get("shaded/example/resource.txt"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that an {@link EntryStore} treats damaged classes as missing.
+ */
+class EntryStoreTest {
+    private static final byte[] CONTENTS = ("a class which compresses well, well, well, well, well, well, well")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void damagedStoredClass() throws IOException {
+        assertDamagedClassIsMissing(CompressionPolicy.STORED);
+    }
+
+    @Test
+    void damagedDeflatedClass() throws IOException {
+        assertDamagedClassIsMissing(9);
+    }
+
+    private void assertDamagedClassIsMissing(int level) throws IOException {
+        EntryStore store = new EntryStore(this.directory.toFile(), 1 << 20);
+        CompressedData data = CompressedData.compress(CONTENTS, level, false, new DeflaterPool());
+        store.put("aa", data);
+        assertNotNull(store.get("aa"));
+
+        // flip a bit in the last byte of the contents, leaving the header and length intact
+        Path file = storedFile();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+
+        assertNull(store.get("aa"));
+        assertFalse(Files.exists(file));
+        assertEquals(0, store.size());
+        assertEquals(1, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    private Path storedFile() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            return files.filter(file -> file.toString().endsWith(".class")).collect(Collectors.toList()).get(0);
+        }
+    }
+}
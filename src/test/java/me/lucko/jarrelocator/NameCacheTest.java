@@ -0,0 +1,86 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks the sizes kept to by a {@link NameCache}.
+ */
+class NameCacheTest {
+
+    @Test
+    void noEvictionKeepsToMaximumSize() throws InterruptedException {
+        int maximumSize = 1000;
+        NameCache cache = new NameCache(maximumSize, NameCache.EvictionPolicy.NONE);
+
+        // several threads race to add overlapping names
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int offset = t * 500;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 5000; i++) {
+                    String name = "com/example/Type" + (offset + i);
+                    cache.put(name, name);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(maximumSize, cache.size());
+        int held = 0;
+        for (int i = 0; i < 8 * 500 + 5000; i++) {
+            if (cache.get("com/example/Type" + i) != null) {
+                held++;
+            }
+        }
+        assertEquals(maximumSize, held);
+    }
+
+    @Test
+    void noEvictionKeepsTheFirstNames() {
+        NameCache cache = new NameCache(2, NameCache.EvictionPolicy.NONE);
+        cache.put("a", "x/a");
+        cache.put("a", "x/a");
+        cache.put("b", "x/b");
+        cache.put("c", "x/c");
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures how relocating (and compressing) a jar scales with the number of
+ * threads in the executor, and checks that every output holds the same
+ * entries as the output relocated on a single thread.
+ *
+ * <p>The results are only meaningful on a host with at least as many cores
+ * as the largest thread count measured.</p>
+ *
+ * <p>Run with {@code java -cp <test classpath> me.lucko.jarrelocator.ParallelRelocationBenchmark
+ * <jar> <pattern=relocatedPattern>...}.</p>
+ */
+public final class ParallelRelocationBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+    private static final int WARM_UP_RUNS = 10;
+    private static final int RUNS = 3;
+
+    private ParallelRelocationBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ParallelRelocationBenchmark <jar> <pattern=relocatedPattern>...");
+            System.exit(1);
+        }
+        File input = new File(args[0]);
+        Map<String, String> rules = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] rule = args[i].split("=", 2);
+            rules.put(rule[0], rule[1]);
+        }
+        RelocationEngine engine = new RelocationEngine(rules).withClassEngine(ClassEngine.CONSTANT_POOL);
+        System.out.printf("%d available processors%n", Runtime.getRuntime().availableProcessors());
+
+        File sequentialOutput = File.createTempFile("sequential", ".jar");
+        File output = File.createTempFile("parallel", ".jar");
+        try {
+            // let the JIT compile the relocation and compression paths before anything is measured
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                engine.relocate(input, sequentialOutput);
+            }
+            System.out.printf("sequential: %6.2f s%n", time(engine, input, sequentialOutput));
+            Map<String, Long> expected = entries(sequentialOutput);
+
+            for (int threads : THREADS) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    double seconds = time(engine.withExecutor(executor), input, output);
+                    String result = entries(output).equals(expected) ? "same entries" : "DIFFERENT ENTRIES";
+                    System.out.printf("%2d threads: %6.2f s (%s)%n", threads, seconds, result);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        } finally {
+            sequentialOutput.delete();
+            output.delete();
+        }
+    }
+
+    /**
+     * Gets the best time of several runs, after a warm-up run.
+     */
+    private static double time(RelocationEngine engine, File input, File output) throws IOException {
+        engine.relocate(input, output);
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            engine.relocate(input, output);
+            times.add(System.nanoTime() - start);
+        }
+        return times.stream().mapToLong(Long::longValue).min().getAsLong() / 1e9;
+    }
+
+    /**
+     * Gets the CRC of each entry, keyed by name in the order they appear,
+     * ignoring timestamps.
+     */
+    private static Map<String, Long> entries(File jar) throws IOException {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (Enumeration<? extends ZipEntry> it = zip.entries(); it.hasMoreElements(); ) {
+                ZipEntry entry = it.nextElement();
+                entries.put(entry.getName(), entry.getCrc());
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that {@link RelocatingRemapper} recognises descriptors and
+ * multi-release paths exactly as the regular expressions it replaced did, and
+ * picks the same rule as a scan of the rules in order did.
+ */
+class RelocatingRemapperTest {
+    private static final Pattern CLASS_PATTERN = Pattern.compile("(\\[*)?L(.+);");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^(META-INF/versions/\\d+/)(.*)$");
+
+    /**
+     * The rules, as {pattern, relocated pattern, include, exclude}. They
+     * overlap, and some differ only in their includes and excludes, so the
+     * order they're tried in matters.
+     */
+    private static final String[][] RULE_SPECS = {
+            {"com.example", "shaded.example", null, "com.example.internal.**"},
+            {"com.example", "other.example", null, null},
+            {"com.example.internal", "shaded.internal", null, null},
+            {"com.exam", "x", null, null},
+            {"com", "c", "com.foo.*", null},
+            {"com", "d", null, "com.foo.**"},
+            {"L", "relocated.L", null, null},
+            {"META-INF.services", "shaded.services", null, null}
+    };
+
+    private static final List<Relocation> RULES = new ArrayList<>();
+    /** The same rules, as implemented before they were compiled into a {@link RelocationIndex} */
+    private static final List<LegacyRelocation> LEGACY_RULES = new ArrayList<>();
+
+    static {
+        for (String[] spec : RULE_SPECS) {
+            List<String> includes = spec[2] == null ? Collections.emptyList() : Collections.singletonList(spec[2]);
+            List<String> excludes = spec[3] == null ? Collections.emptyList() : Collections.singletonList(spec[3]);
+            RULES.add(new Relocation(spec[0], spec[1], includes, excludes));
+            LEGACY_RULES.add(new LegacyRelocation(spec[0], spec[1], includes, excludes));
+        }
+    }
+
+    private static final String[] PIECES = {
+            "[", "[", "L", "L", ";", ";", "/", "9", "11", "x", "META-INF/versions/", "META-INF/versions/",
+            "com/example/", "com.example.", "Foo", ".class", "META-INF/services/", "internal/", "internal.",
+            "com/exam", "com/", "com.", "foo/", "foo.", "examples/",
+            "\n", "\r", "\u0085", " ", " ", "\t", "é"
+    };
+
+    @Test
+    void matchesRegularExpressions() {
+        RelocatingRemapper remapper = new RelocatingRemapper(RULES, null);
+
+        String[] cases = {
+                "", "L", ";", "L;", "[L;", "LL;", "[[L;", "Lx;", "[Lx;", "[[[Lcom/example/Foo;", "Lcom/example/Foo;",
+                "La;b;", "L\n;", "Lcom/example/Foo\n;", "L\r\n;", "[L ;", "com.example.Foo", "Lcom.example.Foo;",
+                "META-INF/versions/9/com/example/Foo.class", "META-INF/versions/9/", "META-INF/versions//com/example/Foo",
+                "META-INF/versions/x/com/example/Foo", "META-INF/versions/11/com/example/Foo\n", "META-INF/versions/9/L",
+                "META-INF/versions/9", "/META-INF/versions/9/com/example/Foo", "META-INF/versions/١/com/example/Foo",
+                "META-INF/services/com.example.Foo", "META-INF/versions/9/META-INF/versions/9/com/example/Foo",
+                "com/example/internal/Foo", "com.example.internal.Foo", "/com/example/internal/Foo", "com/examples/Foo",
+                "com/foo/Bar", "com.foo.Bar", "com/foo/bar/Baz", "com/other/Foo.class", "Lcom/example/internal/Foo;"
+        };
+        for (String name : cases) {
+            assertEquivalent(remapper, name);
+        }
+
+        Random random = new Random(0);
+        for (int i = 0; i < 200000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int pieces = random.nextInt(8);
+            for (int j = 0; j < pieces; j++) {
+                sb.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertEquivalent(remapper, sb.toString());
+        }
+    }
+
+    @Test
+    void versionedDescriptorsKeepTheirPrefix() {
+        // the regexes replaced the "[L" of a descriptor wrapping a versioned path with the version prefix
+        RelocatingRemapper remapper = new RelocatingRemapper(RULES, null);
+        assertEquals("[LMETA-INF/versions/9/shaded/example/Foo;", remapper.mapValue("[LMETA-INF/versions/9/com/example/Foo;"));
+        assertEquals("LMETA-INF/versions/9/shaded/example/Foo;", remapper.mapValue("LMETA-INF/versions/9/com/example/Foo;"));
+    }
+
+    private static void assertEquivalent(RelocatingRemapper remapper, String name) {
+        String mapped = regexRelocate(name, false);
+        assertEquals(mapped == null ? name : mapped, remapper.map(name), name);
+
+        if (CLASS_PATTERN.matcher(name).matches() && VERSION_PATTERN.matcher(CLASS_PATTERN.matcher(name).replaceFirst("$2")).matches()) {
+            // see versionedDescriptorsKeepTheirPrefix
+            return;
+        }
+        String mappedValue = regexRelocate(name, true);
+        assertEquals(mappedValue == null ? name : mappedValue, remapper.mapValue(name), name);
+    }
+
+    /**
+     * The implementation of RelocatingRemapper#relocate before the regular
+     * expressions were replaced and the rules were compiled into an index.
+     */
+    private static String regexRelocate(String name, boolean isStringValue) {
+        String prefix = "";
+        String suffix = "";
+
+        if (isStringValue) {
+            Matcher m = CLASS_PATTERN.matcher(name);
+            if (m.matches()) {
+                prefix = m.group(1) + "L";
+                name = m.group(2);
+                suffix = ";";
+            }
+        }
+
+        Matcher m = VERSION_PATTERN.matcher(name);
+        if (m.matches()) {
+            prefix = m.group(1);
+            name = m.group(2);
+        }
+
+        for (LegacyRelocation r : LEGACY_RULES) {
+            if (isStringValue && r.canRelocateClass(name)) {
+                return prefix + r.relocateClass(name) + suffix;
+            } else if (r.canRelocatePath(name)) {
+                return prefix + r.relocatePath(name) + suffix;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Measures the time taken and the memory allocated to match and relocate a
+ * name with a {@link Relocation}, against the regex based
+ * {@link LegacyRelocation} it replaced.
+ *
+ * <p>Run with {@code java -cp <test classpath> me.lucko.jarrelocator.RelocationBenchmark [iterations]}.</p>
+ */
+public final class RelocationBenchmark {
+
+    private RelocationBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        // a mix of names which do and don't match, as found in a typical jar
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            names.add("com/example/library/Type" + i + ".class");
+            names.add("com/example/library/internal/Type" + i + "$Inner");
+            names.add("org/other/library/Type" + i + ".class");
+            names.add("java/lang/String");
+        }
+        String[] mix = names.toArray(new String[0]);
+
+        Relocation relocation = new Relocation("com.example.library", "shaded.library");
+        LegacyRelocation legacy = new LegacyRelocation("com.example.library", "shaded.library");
+        Function<String, String> current = name -> relocation.canRelocatePath(name) ? relocation.relocatePath(name) : name;
+        Function<String, String> regex = name -> legacy.canRelocatePath(name) ? legacy.relocatePath(name) : name;
+
+        // warm up both, then measure each
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            run("legacy ", regex, mix, iterations, report);
+            run("current", current, mix, iterations, report);
+        }
+    }
+
+    private static void run(String label, Function<String, String> function, String[] names, int iterations, boolean report) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        int checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            checksum += function.apply(names[i % names.length]).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        if (report) {
+            System.out.printf("%s: %6.1f bytes/name, %6.1f ns/name (checksum %d)%n",
+                    label, (double) allocated / iterations, (double) elapsed / iterations, checksum);
+        }
+    }
+}
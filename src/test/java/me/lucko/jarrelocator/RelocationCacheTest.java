@@ -0,0 +1,69 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the files a {@link RelocationCache} puts into place.
+ */
+class RelocationCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void outputsCanBeReplaced() throws IOException {
+        Path input = this.directory.resolve("input.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(input))) {
+            out.putNextEntry(new ZipEntry("com/example/resource.txt"));
+            out.write("contents".getBytes(StandardCharsets.UTF_8));
+        }
+        Path output = this.directory.resolve("output.jar");
+        RelocationEngine engine = new RelocationEngine(Collections.singletonMap("com.example", "shaded.example"))
+                .withCache(new RelocationCache(this.directory.resolve("cache").toFile(), 1 << 20));
+
+        // relocated into the cache, then taken from it
+        assertFalse(engine.relocate(input.toFile(), output.toFile()).isCached());
+        assertFalse(isReadOnly(output));
+        assertTrue(engine.relocate(input.toFile(), output.toFile()).isCached());
+        assertFalse(isReadOnly(output));
+    }
+
+    private static boolean isReadOnly(Path file) throws IOException {
+        // Files#isWritable is always true when running as root
+        if (Files.getFileStore(file).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            return !Files.getPosixFilePermissions(file).contains(PosixFilePermission.OWNER_WRITE);
+        }
+        return Files.readAttributes(file, DosFileAttributes.class).isReadOnly();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link Relocation} matches and relocates names as the regex
+ * based {@link LegacyRelocation} did, for patterns it handled correctly.
+ */
+class RelocationTest {
+    private static final String[] PIECES = {
+            "com", "example", "examples", "sub", "Foo", "internal", "class", "Bar$1",
+            ".", ".", "/", "/", "$", ".class", "com.example", "com/example"
+    };
+
+    @Test
+    void matchesLegacyImplementation() {
+        List<Collection<String>> includes = Arrays.asList(
+                Collections.<String>emptyList(),
+                Collections.singletonList("com.example.sub.*"),
+                Arrays.asList("com/example/Foo*", "com.example.internal.**")
+        );
+        List<Collection<String>> excludes = Arrays.asList(
+                Collections.<String>emptyList(),
+                Collections.singletonList("com.example.internal.**"),
+                Collections.singletonList("com/example/*")
+        );
+
+        Random random = new Random(0);
+        for (Collection<String> include : includes) {
+            for (Collection<String> exclude : excludes) {
+                for (String[] rule : new String[][]{{"com.example", "shaded.example"}, {"com/example/sub", "x"}, {"com", "a.b.c"}}) {
+                    Relocation relocation = new Relocation(rule[0], rule[1], include, exclude);
+                    LegacyRelocation legacy = new LegacyRelocation(rule[0], rule[1], include, exclude);
+                    for (int i = 0; i < 5000; i++) {
+                        assertEquivalent(relocation, legacy, randomName(random));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void patternsAreNotRegularExpressions() {
+        Relocation relocation = new Relocation("com.example.Outer$Inner", "shaded.$0.Inner");
+        assertTrue(relocation.canRelocatePath("com/example/Outer$Inner.class"));
+        assertEquals("shaded/$0/Inner.class", relocation.relocatePath("com/example/Outer$Inner.class"));
+        assertEquals("/shaded/$0/Inner$1", relocation.relocatePath("/com/example/Outer$Inner$1"));
+        assertTrue(relocation.canRelocateClass("com.example.Outer$Inner"));
+        assertEquals("shaded.$0.Inner", relocation.relocateClass("com.example.Outer$Inner"));
+
+        // '.' is matched literally, not as any character
+        Relocation dotted = new Relocation("com.example", "shaded");
+        assertFalse(dotted.canRelocateClass("comXexample.Foo"));
+        assertEquals("comXexample.Foo", dotted.relocateClass("comXexample.Foo"));
+    }
+
+    private static void assertEquivalent(Relocation relocation, LegacyRelocation legacy, String name) {
+        boolean canRelocatePath = legacy.canRelocatePath(name);
+        assertEquals(canRelocatePath, relocation.canRelocatePath(name), name);
+        if (canRelocatePath) {
+            assertEquals(legacy.relocatePath(name), relocation.relocatePath(name), name);
+        }
+
+        boolean canRelocateClass = legacy.canRelocateClass(name);
+        assertEquals(canRelocateClass, relocation.canRelocateClass(name), name);
+        if (canRelocateClass) {
+            assertEquals(legacy.relocateClass(name), relocation.relocateClass(name), name);
+        }
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int pieces = random.nextInt(7);
+        for (int i = 0; i < pieces; i++) {
+            sb.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return sb.toString();
+    }
+}
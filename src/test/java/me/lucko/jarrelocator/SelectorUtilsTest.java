@@ -0,0 +1,86 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the precompiled matchers of {@link SelectorUtils} match
+ * exactly the paths the tokenizing {@link PlexusSelectorUtils} did.
+ */
+class SelectorUtilsTest {
+    private static final String[] PATTERN_SEGMENTS = {
+            "**", "**", "*", "?", "a", "b", "ab", "a*", "*b", "a?", "?b", "a*b", "*a*", "a**b", "a?*", "*?", "A", ""
+    };
+    private static final String[] PATH_SEGMENTS = {"a", "b", "ab", "ba", "aab", "abb", "A", "aXb", ""};
+
+    @Test
+    void doubleStars() {
+        String[] patterns = {
+                "**", "**/a", "a/**", "a/**/b", "**/a/**", "**/**", "a/**/**/b", "**/**/a", "a/**/**",
+                "/**/a", "**/a/**/b/**", "a/**/b/**/a/**/b"
+        };
+        String[] paths = {
+                "", "a", "b", "a/b", "b/a", "a/a/b", "a/b/b", "a/x/y/b", "/a", "/a/b", "a/b/a/b", "b/a/b/a/b/b", "a//b", "a/b/"
+        };
+        for (String pattern : patterns) {
+            for (String path : paths) {
+                assertEquivalent(pattern, path);
+            }
+        }
+    }
+
+    @Test
+    void fuzzedPatterns() {
+        Random random = new Random(0);
+        for (int i = 0; i < 200000; i++) {
+            assertEquivalent(randomPath(random, PATTERN_SEGMENTS, 5), randomPath(random, PATH_SEGMENTS, 6));
+        }
+    }
+
+    private static void assertEquivalent(String pattern, String path) {
+        for (boolean isCaseSensitive : new boolean[]{true, false}) {
+            boolean expected = PlexusSelectorUtils.matchPath(pattern, path, "/", isCaseSensitive);
+            PathMatcher matcher = SelectorUtils.compile(pattern, '/', isCaseSensitive);
+            assertEquals(expected, matcher.matches(path), () -> pattern + " against " + path);
+            // only the given length of the path is matched, as done for ".class" entries
+            assertEquals(expected, matcher.matches(path + ".class", path.length()), () -> pattern + " against " + path + ".class");
+        }
+    }
+
+    private static String randomPath(Random random, String[] segments, int maximumLength) {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextInt(8) == 0) {
+            sb.append('/');
+        }
+        int length = random.nextInt(maximumLength + 1);
+        for (int i = 0; i < length; i++) {
+            if (i != 0) {
+                sb.append('/');
+            }
+            sb.append(segments[random.nextInt(segments.length)]);
+        }
+        if (random.nextInt(8) == 0) {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+}
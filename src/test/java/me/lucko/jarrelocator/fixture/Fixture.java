@@ -0,0 +1,128 @@
+/*
+ * Copyright Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.lucko.jarrelocator.fixture;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A class which refers to itself and to its package in as many of the places
+ * in a class file as possible, for the engine equivalence tests.
+ */
+@FixtureAnnotation(value = Fixture.Inner.class, classes = {Fixture.class, Fixture[].class}, kind = Fixture.Kind.NESTED)
+public class Fixture<T extends Fixture<T>> implements Comparable<Fixture<?>>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // string constants, in each of the forms the remapper recognises
+    public static final String DOTTED = "me.lucko.jarrelocator.fixture.Fixture";
+    public static final String PATH = "me/lucko/jarrelocator/fixture/Fixture";
+    public static final String DESCRIPTOR = "Lme/lucko/jarrelocator/fixture/Fixture;";
+    public static final String ARRAY_DESCRIPTOR = "[[Lme/lucko/jarrelocator/fixture/Fixture;";
+    public static final String RESOURCE = "me/lucko/jarrelocator/fixture/resource.txt";
+    public static final String VERSIONED = "META-INF/versions/9/me/lucko/jarrelocator/fixture/Fixture";
+    public static final String VERSIONED_CLASS = "META-INF/versions/11/me/lucko/jarrelocator/fixture/Fixture.class";
+    public static final String ARRAY_VERSIONED = "[LMETA-INF/versions/9/me/lucko/jarrelocator/fixture/Fixture;";
+    public static final String UNRELATED = "com/example/Unrelated";
+    public static final String MULTILINE = "me.lucko.jarrelocator.fixture.Fixture\nme.lucko.jarrelocator.fixture.Fixture";
+
+    @FixtureAnnotation(kind = Kind.PLAIN)
+    private Map<String, List<Fixture<T>>> children = Collections.emptyMap();
+    private T self;
+    private Fixture<?>[][] grid;
+    private final List<@FixtureAnnotation Inner> inners = new ArrayList<>();
+
+    public <U extends Fixture<U> & Serializable> U cast(@FixtureAnnotation(Inner.class) Object value, Class<U> type) throws FixtureException {
+        if (!type.isInstance(value)) {
+            throw new FixtureException(String.valueOf(value));
+        }
+        return type.cast(value);
+    }
+
+    public List<Fixture<?>> map(List<? extends Fixture<?>> values) {
+        List<Fixture<?>> result = new ArrayList<>();
+        // lambdas and method references are bootstrapped with method types and handles referring to the fixture
+        Function<Fixture<?>, Fixture<?>> identity = Fixture::identity;
+        Supplier<Inner> inner = Inner::new;
+        Callable<Fixture<?>[]> array = () -> new Fixture<?>[]{this};
+        values.forEach(value -> result.add(identity.apply(value)));
+        result.add(inner.get().outer());
+        try {
+            Collections.addAll(result, array.call());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    public Object anonymous() {
+        return new Comparable<Fixture<?>>() {
+            @Override
+            public int compareTo(Fixture<?> o) {
+                return o.grid == null ? 0 : o.grid.length;
+            }
+        };
+    }
+
+    public int kind(Kind kind) {
+        // switching on an enum generates a synthetic class holding the switch map
+        switch (kind) {
+            case PLAIN:
+                return 1;
+            case NESTED:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    public Class<?>[] classes() {
+        return new Class<?>[]{Fixture.class, Inner.class, Fixture[][].class, Kind.class};
+    }
+
+    private static Fixture<?> identity(Fixture<?> value) {
+        return value;
+    }
+
+    @Override
+    public int compareTo(Fixture<?> o) {
+        return Integer.compare(this.inners.size(), o.inners.size());
+    }
+
+    public enum Kind {
+        PLAIN, NESTED
+    }
+
+    public class Inner {
+        public Fixture<T> outer() {
+            return Fixture.this;
+        }
+    }
+
+    public static class FixtureException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public FixtureException(String message) {
+            super(message);
+        }
+    }
+}